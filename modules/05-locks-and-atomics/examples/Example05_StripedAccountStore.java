@@ -0,0 +1,355 @@
+/**
+ * Example 05: Columnar Account Store with Lock Striping
+ *
+ * BankAccountWithLock (Exercise 01) gives every account its own object,
+ * ReentrantLock and Condition. Per account that is roughly:
+ *   account object (~24 bytes) + ReentrantLock (~16) + its Sync (~32)
+ *   + ConditionObject (~24) + the reference to it in your array/map
+ * That is ~100 bytes before the balance is even counted - tens of millions
+ * of accounts simply don't fit in the heap.
+ *
+ * This example stores accounts "column-wise":
+ * - All balances live in ONE long[] indexed by account id (8 bytes each)
+ * - A fixed array of locks is shared: account id -> stripe = id % stripes
+ * - Each stripe has its own Condition, so withdraw() can still wait
+ *
+ * Lock striping is the same trick the original ConcurrentHashMap used:
+ * a few thousand locks give nearly the same concurrency as millions.
+ */
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Example05_StripedAccountStore {
+
+    private static final int NUM_ACCOUNTS = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== Columnar Account Store with Lock Striping ===\n");
+
+        semanticsDemo();
+        memoryComparison();
+        throughputComparison();
+    }
+
+    private static void semanticsDemo() throws InterruptedException {
+        System.out.println("--- Same Semantics as BankAccountWithLock ---");
+        StripedAccountStore store = new StripedAccountStore(10, 1_000, 4);
+
+        store.deposit(1, 500);
+        System.out.println("After deposit 500: " + store.getBalance(1));            // 1500
+        store.withdraw(1, 200);
+        System.out.println("After withdraw 200: " + store.getBalance(1));           // 1300
+        System.out.println("tryWithdraw(1, 5000, 100ms): "
+            + store.tryWithdraw(1, 5_000, 100, TimeUnit.MILLISECONDS));             // false
+        System.out.println("transfer(1 -> 2, 300): " + store.transfer(1, 2, 300)); // true
+
+        // withdraw() still blocks until someone deposits enough
+        Thread withdrawer = new Thread(() -> {
+            try {
+                System.out.println("[Withdrawer] Waiting to withdraw 1500 from account 3");
+                store.withdraw(3, 1_500);
+                System.out.println("[Withdrawer] Withdrew 1500!");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        withdrawer.start();
+        Thread.sleep(200);
+        System.out.println("[Depositor] Depositing 500 into account 3");
+        store.deposit(3, 500);
+        withdrawer.join();
+        System.out.println("Account 3: " + store.getBalance(3));                    // 0
+        System.out.println();
+    }
+
+    private static void memoryComparison() {
+        System.out.println("--- Memory for " + String.format("%,d", NUM_ACCOUNTS) + " accounts ---");
+
+        long before = usedHeap();
+        ObjectAccount[] objects = new ObjectAccount[NUM_ACCOUNTS];
+        for (int i = 0; i < NUM_ACCOUNTS; i++) {
+            objects[i] = new ObjectAccount(i, 1_000);
+        }
+        long objectBytes = usedHeap() - before;
+        System.out.printf("  object-per-account: %,6d MB  (~%d bytes/account)%n",
+            objectBytes >> 20, objectBytes / NUM_ACCOUNTS);
+        objects = null;  // Let it be collected before measuring the store
+
+        before = usedHeap();
+        StripedAccountStore store = new StripedAccountStore(NUM_ACCOUNTS, 1_000, 1_024);
+        long storeBytes = usedHeap() - before;
+        System.out.printf("  striped store:      %,6d MB  (~%d bytes/account)%n",
+            storeBytes >> 20, storeBytes / NUM_ACCOUNTS);
+        System.out.println("  (store still reachable: " + store.size() + " accounts)");
+        System.out.println();
+    }
+
+    private static void throughputComparison() throws InterruptedException {
+        System.out.println("--- Random Transfers (4 threads x 1,000,000) ---");
+
+        ObjectAccount[] objects = new ObjectAccount[NUM_ACCOUNTS];
+        for (int i = 0; i < NUM_ACCOUNTS; i++) {
+            objects[i] = new ObjectAccount(i, 1_000);
+        }
+        long objectNanos = runTransfers((from, to) -> objects[from].transfer(1, objects[to]));
+
+        StripedAccountStore store = new StripedAccountStore(NUM_ACCOUNTS, 1_000, 1_024);
+        long storeNanos = runTransfers((from, to) -> store.transfer(from, to, 1));
+
+        System.out.printf("  object-per-account: %,d transfers/sec%n", 4_000_000L * 1_000_000_000L / objectNanos);
+        System.out.printf("  striped store:      %,d transfers/sec%n", 4_000_000L * 1_000_000_000L / storeNanos);
+    }
+
+    private interface Transfer {
+        void run(int from, int to);
+    }
+
+    private static long runTransfers(Transfer transfer) throws InterruptedException {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                Random rand = new Random(seed);
+                for (int i = 0; i < 1_000_000; i++) {
+                    int from = rand.nextInt(NUM_ACCOUNTS);
+                    int to = rand.nextInt(NUM_ACCOUNTS);
+                    if (from != to) {
+                        transfer.run(from, to);
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        return System.nanoTime() - start;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
+
+/**
+ * Account balances stored in a single long[] (in cents), guarded by a
+ * fixed number of lock stripes.
+ *
+ * For more than ~2 billion accounts, or to keep balances out of the GC's
+ * sight completely, the long[] can be swapped for one or more direct
+ * ByteBuffers (ByteBuffer.allocateDirect(...).asLongBuffer()) - the locking
+ * scheme stays exactly the same.
+ */
+class StripedAccountStore {
+    private final long[] balances;
+    private final ReentrantLock[] locks;
+    private final Condition[] sufficientFunds;
+
+    public StripedAccountStore(int numAccounts, long initialBalance, int numStripes) {
+        this.balances = new long[numAccounts];
+        java.util.Arrays.fill(balances, initialBalance);
+        this.locks = new ReentrantLock[numStripes];
+        this.sufficientFunds = new Condition[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            locks[i] = new ReentrantLock();
+            sufficientFunds[i] = locks[i].newCondition();
+        }
+    }
+
+    public int size() {
+        return balances.length;
+    }
+
+    public void deposit(int id, long amount) {
+        int stripe = stripeOf(id);
+        locks[stripe].lock();
+        try {
+            balances[id] += amount;
+            // signalAll, not signal: waiters on this stripe may be waiting
+            // for OTHER accounts that share it
+            sufficientFunds[stripe].signalAll();
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    public void withdraw(int id, long amount) throws InterruptedException {
+        int stripe = stripeOf(id);
+        locks[stripe].lock();
+        try {
+            while (balances[id] < amount) {
+                sufficientFunds[stripe].await();  // Wait until enough funds
+            }
+            balances[id] -= amount;
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    public boolean tryWithdraw(int id, long amount, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        int stripe = stripeOf(id);
+        locks[stripe].lock();
+        try {
+            while (balances[id] < amount) {
+                if (nanos <= 0) {
+                    return false;  // Timeout expired
+                }
+                nanos = sufficientFunds[stripe].awaitNanos(nanos);
+            }
+            balances[id] -= amount;
+            return true;
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Transfer between two accounts.
+     *
+     * Stripes are always locked in ascending stripe order, so two transfers
+     * in opposite directions can never deadlock. If both accounts share a
+     * stripe, it is locked only once.
+     */
+    public boolean transfer(int fromId, int toId, long amount) {
+        int fromStripe = stripeOf(fromId);
+        int toStripe = stripeOf(toId);
+        int first = Math.min(fromStripe, toStripe);
+        int second = Math.max(fromStripe, toStripe);
+
+        locks[first].lock();
+        if (second != first) {
+            locks[second].lock();
+        }
+        try {
+            if (balances[fromId] < amount) {
+                return false;  // Insufficient funds
+            }
+            balances[fromId] -= amount;
+            balances[toId] += amount;
+            sufficientFunds[toStripe].signalAll();
+            return true;
+        } finally {
+            if (second != first) {
+                locks[second].unlock();
+            }
+            locks[first].unlock();
+        }
+    }
+
+    public long getBalance(int id) {
+        int stripe = stripeOf(id);
+        locks[stripe].lock();
+        try {
+            return balances[id];
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    private int stripeOf(int id) {
+        return id % locks.length;
+    }
+}
+
+/**
+ * The object-per-account model from Exercise 01 (lock + condition per
+ * account), reduced to what the comparison needs.
+ */
+class ObjectAccount {
+    private final int id;
+    private double balance;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sufficientFunds = lock.newCondition();
+
+    ObjectAccount(int id, double initialBalance) {
+        this.id = id;
+        this.balance = initialBalance;
+    }
+
+    boolean transfer(double amount, ObjectAccount to) {
+        ObjectAccount first = id < to.id ? this : to;
+        ObjectAccount second = id < to.id ? to : this;
+        first.lock.lock();
+        second.lock.lock();
+        try {
+            if (balance < amount) {
+                return false;
+            }
+            balance -= amount;
+            to.balance += amount;
+            to.sufficientFunds.signalAll();
+            return true;
+        } finally {
+            second.lock.unlock();
+            first.lock.unlock();
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by JVM and machine):
+ *
+ * === Columnar Account Store with Lock Striping ===
+ *
+ * --- Same Semantics as BankAccountWithLock ---
+ * After deposit 500: 1500
+ * After withdraw 200: 1300
+ * tryWithdraw(1, 5000, 100ms): false
+ * transfer(1 -> 2, 300): true
+ * [Withdrawer] Waiting to withdraw 1500 from account 3
+ * [Depositor] Depositing 500 into account 3
+ * [Withdrawer] Withdrew 1500!
+ * Account 3: 0
+ *
+ * --- Memory for 1,000,000 accounts ---
+ *   object-per-account:    102 MB  (~108 bytes/account)
+ *   striped store:           7 MB  (~8 bytes/account)
+ *   (store still reachable: 1000000 accounts)
+ *
+ * --- Random Transfers (4 threads x 1,000,000) ---
+ *   object-per-account: 1,187,533 transfers/sec
+ *   striped store:      3,630,849 transfers/sec
+ *
+ *
+ * LAYOUT:
+ *
+ *   Object per account               Columnar + striped
+ *
+ *   [ref]─▶ Account                  balances: [1000][1500][ 700][ ...  ]
+ *           ├ balance                            id 0  id 1  id 2
+ *           ├ ReentrantLock─▶ Sync
+ *           └ Condition                locks:    [L0][L1][L2]...[L1023]
+ *   [ref]─▶ Account ...                          id % 1024 picks the lock
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. LOCK STRIPING:
+ *    Concurrency is limited by the number of stripes, not accounts. With
+ *    1024 stripes, two random accounts rarely share a lock.
+ *
+ * 2. SHARED CONDITIONS:
+ *    A stripe's Condition is shared by all its accounts, so deposits must
+ *    signalAll() - waiters re-check their own balance in the while loop.
+ *
+ * 3. DEADLOCK-FREE TRANSFER:
+ *    Locking stripes in index order is the same "global lock order" rule
+ *    as ordering by account id - and it handles both accounts being on
+ *    the same stripe.
+ *
+ * 4. CACHE FRIENDLINESS:
+ *    Balances are contiguous; no pointer chasing per account. Bulk
+ *    operations (sum, interest) become simple array loops.
+ *
+ * 5. TRADE-OFF:
+ *    Unrelated accounts that share a stripe can block each other briefly.
+ *    Pick enough stripes (a few per core is plenty) to make that rare.
+ */
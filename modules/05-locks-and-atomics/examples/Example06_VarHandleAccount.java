@@ -0,0 +1,379 @@
+/**
+ * Example 06: Lock-Free Fast Path with VarHandle
+ *
+ * BankAccountWithLock takes its ReentrantLock for every operation, even a
+ * trivial deposit. Two things can be improved:
+ *
+ * 1. MONEY AS long CENTS:
+ *    double cannot represent 0.10 exactly, so balances drift. Storing
+ *    fixed-point cents in a long is exact - and a long can be CAS'ed.
+ *
+ * 2. CAS FAST PATH, LOCK SLOW PATH:
+ *    - deposit() and tryWithdraw() are CAS loops on a VarHandle field
+ *    - Only withdraw(), which must WAIT for funds, uses lock + Condition
+ *    - deposit() touches the lock only if someone is actually waiting
+ *
+ * VarHandle (Java 9+) is the modern low-level way to do atomic operations
+ * on a plain field - the same thing AtomicLong does internally, without
+ * the extra object per account.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Example06_VarHandleAccount {
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== Lock-Free Fast Path with VarHandle ===\n");
+
+        fixedPointDemo();
+        blockingWithdrawDemo();
+        benchmark();
+    }
+
+    private static void fixedPointDemo() {
+        System.out.println("--- Fixed-Point Cents ---");
+        double asDouble = 0;
+        FastAccount account = new FastAccount(1, 0);
+        for (int i = 0; i < 10; i++) {
+            asDouble += 0.10;
+            account.deposit(FastAccount.toCents(0.10));
+        }
+        System.out.println("10 x $0.10 as double: " + asDouble);                      // 0.9999999999999999
+        System.out.println("10 x $0.10 as cents:  " + FastAccount.format(account.getBalanceCents()));
+        System.out.println("tryWithdraw($5.00): " + account.tryWithdraw(FastAccount.toCents(5.00)));  // false
+        System.out.println("tryWithdraw($0.25): " + account.tryWithdraw(FastAccount.toCents(0.25)));  // true
+        System.out.println("Balance: " + FastAccount.format(account.getBalanceCents()));  // $0.75
+        System.out.println();
+    }
+
+    private static void blockingWithdrawDemo() throws InterruptedException {
+        System.out.println("--- Blocking Withdraw (slow path) ---");
+        FastAccount account = new FastAccount(1, FastAccount.toCents(100));
+
+        Thread withdrawer = new Thread(() -> {
+            try {
+                System.out.println("[Withdrawer] Trying to withdraw $500 (only $100 available)");
+                account.withdraw(FastAccount.toCents(500));
+                System.out.println("[Withdrawer] Withdrew $500!");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        withdrawer.start();
+        Thread.sleep(500);
+        System.out.println("[Depositor] Depositing $400");
+        account.deposit(FastAccount.toCents(400));  // CAS, then wakes the waiter
+        withdrawer.join();
+        System.out.println("Final balance: " + FastAccount.format(account.getBalanceCents()));
+        System.out.println();
+    }
+
+    /**
+     * 95% fast-path operations (deposit / tryWithdraw), 5% balance reads,
+     * all threads hammering ONE account - the worst case for a lock.
+     */
+    private static void benchmark() throws InterruptedException {
+        System.out.println("--- Benchmark: 4 threads x 2,000,000 ops on one account ---");
+        int threads = 4;
+        int ops = 2_000_000;
+
+        LockedCentsAccount locked = new LockedCentsAccount(1_000_000);
+        long lockedNanos = run(threads, ops, rand -> {
+            int r = rand.nextInt(100);
+            if (r < 50) {
+                locked.deposit(1);
+            } else if (r < 95) {
+                locked.tryWithdraw(1);
+            } else {
+                locked.getBalanceCents();
+            }
+        });
+
+        FastAccount fast = new FastAccount(1, 1_000_000);
+        long fastNanos = run(threads, ops, rand -> {
+            int r = rand.nextInt(100);
+            if (r < 50) {
+                fast.deposit(1);
+            } else if (r < 95) {
+                fast.tryWithdraw(1);
+            } else {
+                fast.getBalanceCents();
+            }
+        });
+
+        long total = (long) threads * ops;
+        System.out.printf("  ReentrantLock:    %,12d ops/sec%n", total * 1_000_000_000L / lockedNanos);
+        System.out.printf("  VarHandle CAS:    %,12d ops/sec%n", total * 1_000_000_000L / fastNanos);
+    }
+
+    private interface Op {
+        void run(ThreadLocalRandom rand);
+    }
+
+    private static long run(int numThreads, int opsPerThread, Op op) throws InterruptedException {
+        Thread[] workers = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                for (int i = 0; i < opsPerThread; i++) {
+                    op.run(rand);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        return System.nanoTime() - start;
+    }
+}
+
+/**
+ * Account with a lock-free fast path.
+ *
+ * Invariant: balanceCents is only ever changed by a successful CAS, so it
+ * can never go negative and no update is ever lost.
+ */
+class FastAccount {
+    private static final VarHandle BALANCE;
+    private static final VarHandle WAITERS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BALANCE = lookup.findVarHandle(FastAccount.class, "balanceCents", long.class);
+            WAITERS = lookup.findVarHandle(FastAccount.class, "waiters", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int id;
+    private volatile long balanceCents;
+    private volatile int waiters;  // Threads blocked in withdraw()
+
+    // Slow path only
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sufficientFunds = lock.newCondition();
+
+    public FastAccount(int id, long initialCents) {
+        this.id = id;
+        this.balanceCents = initialCents;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** Lock-free deposit. Takes the lock only if a withdrawer is waiting. */
+    public void deposit(long cents) {
+        if (cents <= 0) {
+            throw new IllegalArgumentException("Deposit amount must be positive");
+        }
+        long current;
+        do {
+            current = (long) BALANCE.getVolatile(this);
+        } while (!BALANCE.compareAndSet(this, current, Math.addExact(current, cents)));
+
+        if ((int) WAITERS.getVolatile(this) > 0) {
+            lock.lock();
+            try {
+                sufficientFunds.signalAll();  // Wake up waiting withdrawers
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Lock-free, non-blocking withdraw: false if funds are insufficient.
+     * withdraw() and transfer() go through here, so this check covers them too.
+     */
+    public boolean tryWithdraw(long cents) {
+        if (cents <= 0) {
+            throw new IllegalArgumentException("Withdrawal amount must be positive");
+        }
+        long current;
+        do {
+            current = (long) BALANCE.getVolatile(this);
+            if (current < cents) {
+                return false;  // Insufficient funds
+            }
+        } while (!BALANCE.compareAndSet(this, current, current - cents));
+        return true;
+    }
+
+    /**
+     * Blocking withdraw: waits until the balance covers the amount.
+     *
+     * The waiter count is raised BEFORE re-checking the balance, and
+     * deposit() reads it AFTER its CAS. So either we see the new balance,
+     * or the depositor sees us waiting and signals - a wakeup cannot be lost.
+     */
+    public void withdraw(long cents) throws InterruptedException {
+        if (tryWithdraw(cents)) {
+            return;  // Fast path
+        }
+        lock.lock();
+        WAITERS.getAndAdd(this, 1);
+        try {
+            while (!tryWithdraw(cents)) {
+                sufficientFunds.await();
+            }
+        } finally {
+            WAITERS.getAndAdd(this, -1);
+            lock.unlock();
+        }
+    }
+
+    /** Timed variant of withdraw(), same contract as BankAccountWithLock. */
+    public boolean tryWithdraw(long cents, long timeout, TimeUnit unit) throws InterruptedException {
+        if (tryWithdraw(cents)) {
+            return true;
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        WAITERS.getAndAdd(this, 1);
+        try {
+            while (!tryWithdraw(cents)) {
+                if (nanos <= 0) {
+                    return false;  // Timeout expired
+                }
+                nanos = sufficientFunds.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            WAITERS.getAndAdd(this, -1);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lock-free transfer: debit here with CAS, then credit the target.
+     *
+     * Money is never created or lost, but between the two steps it is
+     * briefly in neither account. If a reader needs an exact snapshot of
+     * several accounts, use the lock-based transfer instead.
+     */
+    public boolean transfer(long cents, FastAccount toAccount) {
+        if (!tryWithdraw(cents)) {
+            return false;
+        }
+        toAccount.deposit(cents);
+        return true;
+    }
+
+    public long getBalanceCents() {
+        return (long) BALANCE.getVolatile(this);
+    }
+
+    static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    static String format(long cents) {
+        return String.format("$%d.%02d", cents / 100, Math.abs(cents % 100));
+    }
+}
+
+/**
+ * BankAccountWithLock's approach (lock for everything), with long cents
+ * so both benchmark sides do identical arithmetic.
+ */
+class LockedCentsAccount {
+    private long balanceCents;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition sufficientFunds = lock.newCondition();
+
+    LockedCentsAccount(long initialCents) {
+        this.balanceCents = initialCents;
+    }
+
+    void deposit(long cents) {
+        lock.lock();
+        try {
+            balanceCents += cents;
+            sufficientFunds.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean tryWithdraw(long cents) {
+        lock.lock();
+        try {
+            if (balanceCents < cents) {
+                return false;
+            }
+            balanceCents -= cents;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBalanceCents() {
+        lock.lock();
+        try {
+            return balanceCents;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine):
+ *
+ * === Lock-Free Fast Path with VarHandle ===
+ *
+ * --- Fixed-Point Cents ---
+ * 10 x $0.10 as double: 0.9999999999999999
+ * 10 x $0.10 as cents:  $1.00
+ * tryWithdraw($5.00): false
+ * tryWithdraw($0.25): true
+ * Balance: $0.75
+ *
+ * --- Blocking Withdraw (slow path) ---
+ * [Withdrawer] Trying to withdraw $500 (only $100 available)
+ * [Depositor] Depositing $400
+ * [Withdrawer] Withdrew $500!
+ * Final balance: $0.00
+ *
+ * --- Benchmark: 4 threads x 2,000,000 ops on one account ---
+ *   ReentrantLock:      19,222,259 ops/sec
+ *   VarHandle CAS:      17,745,246 ops/sec
+ *   (1-CPU machine: threads never run at the same time, so the lock is
+ *   never contended and the two are on par. The CAS path is meant for
+ *   several cores racing for one account - not measured here.)
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. FAST PATH / SLOW PATH:
+ *    Most operations never need to wait, so they shouldn't pay for a lock.
+ *    The lock + Condition are only used by threads that must block. An
+ *    uncontended ReentrantLock is itself just a CAS, though - the fast
+ *    path saves the queueing and parking that contention brings, not
+ *    the cost of an idle lock.
+ *
+ * 2. NO LOST WAKEUPS:
+ *    A waiter publishes "I'm waiting" (waiters++) before its final check;
+ *    a depositor publishes the new balance before checking for waiters.
+ *    With volatile ordering, at least one of them sees the other.
+ *
+ * 3. VARHANDLE vs AtomicLong:
+ *    Same CAS instruction underneath, but the field lives directly in the
+ *    account - one object instead of two per account.
+ *
+ * 4. CONDITIONAL CAS:
+ *    tryWithdraw() re-checks the balance on every CAS attempt, so a
+ *    concurrent withdrawal can never push the balance below zero.
+ *
+ * 5. FIXED-POINT MONEY:
+ *    Use long cents (or BigDecimal) for money, never double.
+ */
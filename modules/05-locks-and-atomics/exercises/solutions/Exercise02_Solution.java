@@ -1,11 +1,82 @@
 /**
- * Solution for Exercise 02: Concurrent Cache with ReadWriteLock
+ * Solution for Exercise 02: Concurrent Cache
+ *
+ * The first version of this solution kept an access-ordered LinkedHashMap
+ * behind a ReentrantReadWriteLock. That has two problems:
+ * - get() only holds the READ lock, but an access-ordered LinkedHashMap
+ *   reorders itself on every get() - concurrent readers corrupt it
+ * - every put() takes the global write lock, so writes never scale
+ *
+ * This version separates the DATA from the EVICTION BOOKKEEPING:
+ * - Entries live in a ConcurrentHashMap - reads and writes are lock-free
+ *   (or fine-grained) and always correct
+ * - The LRU order lives in a linked list owned by whoever holds the
+ *   eviction lock, and is only touched during a "maintenance" pass
+ * - Reads record "node was accessed" in small, striped, LOSSY ring buffers
+ * - Writes record add/remove events in a (lossless) write buffer
+ * - Maintenance drains both buffers under tryLock() - nobody ever waits
+ *
+ * Eviction uses W-TinyLFU instead of plain LRU, so a one-off scan of cold
+ * keys cannot flush out the hot set:
+ * - New entries enter a small LRU "window" (1% of the cache)
+ * - Entries leaving the window must WIN an admission contest against the
+ *   main region's victim, judged by a count-min frequency sketch
+ * - The main region is a segmented LRU: probation (20%) + protected (80%)
+ *
+ * Expiration uses a hierarchical timer wheel instead of scanning the map:
+ * entries are bucketed by deadline, and each maintenance pass expires only
+ * the buckets whose time has come. Entries may have their own TTL via
+ * put(key, value, ttl, unit).
+ *
+ * Loading never blocks inside the map:
+ * - getAsync(key, loader) runs the loader on an executor, and concurrent
+ *   misses on one key share a single in-flight future
+ * - refreshAfterWrite(d) serves a stale entry at once and reloads it in
+ *   the background (stale-while-revalidate), one reload per key
+ * - getAll / putAll / invalidateAll batch the policy bookkeeping into one
+ *   lock acquisition; getAll loads all missing keys in one loader call
+ *
+ * Capacity and visibility:
+ * - maximumWeight(w) + weigher(...) bound the cache by a caller-defined
+ *   cost (bytes, rows...) instead of an entry count
+ * - recordStats() turns on hit/miss/load/eviction counters, readable via
+ *   stats() or JMX after registerMBean(name); off by default
+ *
+ * Storage:
+ * - buildOffHeap(codec) keeps the values in direct memory, in a slab
+ *   allocator of size-classed slots; the heap holds only keys and small
+ *   references, so a large cache adds little GC work
+ * - snapshot(file, ...) writes the live entries with their TTL and
+ *   frequency; load(file, ...) memory-maps it and warm-starts a new cache
  */
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.*;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class Exercise02_Solution {
 
@@ -14,12 +85,22 @@ public class Exercise02_Solution {
 
         testBasicOperations();
         testExpiration();
+        testFrequencyAdmission();
+        testAsyncLoading();
+        testRefreshAhead();
+        testWeightedEviction();
+        testStats();
+        testOffHeap();
+        testWarmStart();
+        testBulkOperations();
         testConcurrentAccess();
+        testReadScaling();
+        testHitRates();
     }
 
     private static void testBasicOperations() {
         System.out.println("--- Basic Operations ---");
-        ConcurrentCache<String, Integer> cache = 
+        ConcurrentCache<String, Integer> cache =
             new ConcurrentCache<>(5, 10, TimeUnit.SECONDS);
 
         cache.put("a", 1);
@@ -33,16 +114,17 @@ public class Exercise02_Solution {
         System.out.println("putIfAbsent(a, 100): " + cache.putIfAbsent("a", 100));  // 1
         System.out.println("putIfAbsent(d, 4): " + cache.putIfAbsent("d", 4));  // null
 
-        System.out.println("computeIfAbsent(e, k -> 5): " + 
+        System.out.println("computeIfAbsent(e, k -> 5): " +
             cache.computeIfAbsent("e", k -> 5));  // 5
 
-        System.out.println("Size: " + cache.size());
+        System.out.println("remove(b): " + cache.remove("b"));  // 2
+        System.out.println("Size: " + cache.size());  // 4
         System.out.println();
     }
 
     private static void testExpiration() throws InterruptedException {
         System.out.println("--- Expiration ---");
-        ConcurrentCache<String, Integer> cache = 
+        ConcurrentCache<String, Integer> cache =
             new ConcurrentCache<>(10, 1, TimeUnit.SECONDS);
 
         cache.put("temp", 42);
@@ -50,12 +132,477 @@ public class Exercise02_Solution {
 
         Thread.sleep(1500);  // Wait for expiration
         System.out.println("After 1.5 seconds: " + cache.get("temp"));  // null
+
+        // Per-entry TTL overrides the cache-wide one
+        ConcurrentCache<String, Integer> perEntry =
+            new ConcurrentCache<>(10, 1, TimeUnit.MINUTES);
+        perEntry.put("session", 1, 500, TimeUnit.MILLISECONDS);
+        perEntry.put("config", 2);
+        Thread.sleep(700);
+        System.out.println("session (ttl 500ms) after 700ms: " + perEntry.get("session"));  // null
+        System.out.println("config (ttl 1min) after 700ms: " + perEntry.get("config"));     // 2
+
+        // Expired entries are removed by maintenance without ever being read
+        ConcurrentCache<Integer, Integer> bulk =
+            new ConcurrentCache<>(200_000, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 100_000; i++) {
+            bulk.put(i, i, 1, TimeUnit.SECONDS);
+        }
+        bulk.put(-1, -1);  // Default TTL, stays
+        bulk.cleanup();
+        System.out.println("Bulk size after put: " + bulk.size());  // 100001
+        Thread.sleep(2200);  // Deadline + one wheel tick (~1.07s)
+        long start = System.nanoTime();
+        bulk.cleanup();      // Any maintenance pass advances the wheel
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println("Bulk size after 2.2 seconds: " + bulk.size());  // 1
+        System.out.printf("Expired 100,000 entries in %,d us (%.0f ns/entry)%n",
+            micros, micros * 1000.0 / 100_000);
+        System.out.println();
+    }
+
+    private static void testAsyncLoading() throws InterruptedException {
+        System.out.println("--- Async Loading ---");
+        ExecutorService loaders = Executors.newFixedThreadPool(4);
+        ConcurrentCache<String, String> cache =
+            new ConcurrentCache<>(100, 1, TimeUnit.MINUTES, loaders);
+        AtomicLong loads = new AtomicLong();
+        Function<String, String> slowLoader = key -> {
+            loads.incrementAndGet();
+            sleepQuietly(200);  // A slow backend call
+            return key.toUpperCase();
+        };
+
+        // 10 concurrent misses on one key -> one load
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(cache.getAsync("user:1", slowLoader));
+        }
+        System.out.println("get(other) during load: " + cache.get("other"));  // null, not blocked
+        for (CompletableFuture<String> f : futures) {
+            f.join();
+        }
+        System.out.println("10 callers, loads: " + loads.get());                 // 1
+        System.out.println("Value: " + futures.get(0).join());                   // USER:1
+        System.out.println("Now cached: " + cache.get("user:1"));                // USER:1
+
+        // Different keys load in parallel
+        long start = System.nanoTime();
+        CompletableFuture.allOf(
+            cache.getAsync("a", slowLoader), cache.getAsync("b", slowLoader),
+            cache.getAsync("c", slowLoader), cache.getAsync("d", slowLoader)).join();
+        System.out.println("4 keys x 200ms loads took ~"
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");  // ~200ms
+
+        // Failures are not cached: the next call retries
+        AtomicLong attempts = new AtomicLong();
+        Function<String, String> flaky = key -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("backend down");
+            }
+            return "recovered";
+        };
+        try {
+            cache.getAsync("flaky", flaky).join();
+        } catch (CompletionException e) {
+            System.out.println("First load failed: " + e.getCause().getMessage());
+        }
+        System.out.println("Cached after failure: " + cache.get("flaky"));      // null
+        System.out.println("Retry: " + cache.getAsync("flaky", flaky).join());  // recovered
+
+        loaders.shutdown();
+        loaders.awaitTermination(1, TimeUnit.SECONDS);
+        System.out.println();
+    }
+
+    private static void testRefreshAhead() throws InterruptedException {
+        System.out.println("--- Refresh-Ahead (stale-while-revalidate) ---");
+        ConcurrentCache<String, String> cache = ConcurrentCache.newBuilder()
+            .maximumSize(100)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .refreshAfterWrite(300, TimeUnit.MILLISECONDS)
+            .build();
+        AtomicLong version = new AtomicLong();
+        Function<String, String> loader = key -> {
+            sleepQuietly(200);  // A slow backend call
+            return key + "-v" + version.incrementAndGet();
+        };
+
+        System.out.println("First load: " + cache.getAsync("price", loader).join());  // price-v1
+        Thread.sleep(400);  // Past refreshAfterWrite, far from expiry
+
+        // Hot key: many reads right after the refresh point, none blocks
+        long worstMicros = 0;
+        String seen = null;
+        for (int i = 0; i < 100; i++) {
+            long start = System.nanoTime();
+            seen = cache.getAsync("price", loader).join();
+            worstMicros = Math.max(worstMicros, (System.nanoTime() - start) / 1000);
+        }
+        System.out.println("100 reads after 400ms return: " + seen);  // price-v1 (stale is fine)
+        System.out.println("Slowest of those reads: " + (worstMicros < 50_000 ? "< 50ms" : worstMicros + "us"));
+        Thread.sleep(300);  // Let the background reload finish
+        System.out.println("After reload: " + cache.get("price"));      // price-v2
+        System.out.println("Refreshes: " + cache.refreshCount()
+            + ", avg latency ~" + TimeUnit.NANOSECONDS.toMillis(cache.averageRefreshNanos()) + "ms");  // 1, ~200ms
+        System.out.println();
+    }
+
+    private static void testWeightedEviction() {
+        System.out.println("--- Weight-Based Eviction (32 MB budget) ---");
+        long budget = 32L << 20;
+        long before = usedHeap();
+        ConcurrentCache<Integer, byte[]> cache = ConcurrentCache.newBuilder()
+            .maximumWeight(budget)
+            .weigher(new HeapWeigher())
+            .build();
+
+        // Weights follow replacements
+        cache.put(-1, new byte[1_000]);
+        System.out.println("1 KB value:   weightedSize " + cache.weightedSize());  // ~1,130
+        cache.put(-1, new byte[100_000]);
+        System.out.println("100 KB value: weightedSize " + cache.weightedSize());  // ~100,130
+
+        // Mixed sizes from 64 bytes to 1 MB (log-uniform), ~200 MB in total
+        Random rand = new Random(42);
+        long inserted = 0;
+        for (int i = 0; i < 2_000; i++) {
+            int size = (int) Math.pow(2, 6 + rand.nextDouble() * 14);
+            cache.put(rand.nextInt(4_000), new byte[size]);
+            inserted += size;
+        }
+        long weight = cache.weightedSize();
+        long retained = usedHeap() - before;
+        System.out.printf("Inserted:     %,d MB%n", inserted >> 20);
+        System.out.printf("Entries:      %,d%n", cache.size());
+        System.out.printf("Weight:       %,d KB (budget %,d KB) -> %s%n",
+            weight >> 10, budget >> 10, weight <= budget ? "within budget" : "OVER BUDGET");
+        System.out.printf("Heap retained: ~%,d MB -> %s%n",
+            retained >> 20, retained <= budget * 11 / 10 ? "within budget" : "OVER BUDGET");
+        System.out.println();
+    }
+
+    private static void testStats() throws InterruptedException {
+        System.out.println("--- Statistics ---");
+        ConcurrentCache<Integer, Integer> cache = ConcurrentCache.newBuilder()
+            .maximumSize(100)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+        for (int i = 0; i < 1_000; i++) {
+            cache.computeIfAbsent(i % 150, k -> k * 10);  // 150 keys, room for 100
+        }
+        cache.remove(0);
+        try {
+            cache.computeIfAbsent(-1, k -> { throw new IllegalStateException("backend down"); });
+        } catch (IllegalStateException expected) {
+            // Counted as a load failure
+        }
+        cache.cleanup();
+        System.out.println(cache.stats());
+
+        try {
+            ObjectName name = cache.registerMBean("demo");
+            Object hitRate = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "HitRate");
+            System.out.printf("JMX %s HitRate = %.3f%n", name, (Double) hitRate);
+        } catch (JMException e) {
+            System.out.println("JMX registration failed: " + e);
+        }
+
+        // Disabled stats must be free: same hot path, counters on vs off
+        ConcurrentCache<Integer, Integer> off = ConcurrentCache.newBuilder()
+            .maximumSize(10_000).build();
+        ConcurrentCache<Integer, Integer> on = ConcurrentCache.newBuilder()
+            .maximumSize(10_000).recordStats().build();
+        long offOps = 0;
+        long onOps = 0;
+        for (int round = 0; round < 3; round++) {  // Interleave; first rounds warm up
+            offOps = Math.max(offOps, measure(2, off::get, off::put));
+            onOps = Math.max(onOps, measure(2, on::get, on::put));
+        }
+        System.out.printf("  stats disabled: %,11d ops/sec%n", offOps);
+        System.out.printf("  stats enabled:  %,11d ops/sec%n", onOps);
+        System.out.println();
+    }
+
+    /**
+     * Same churn workload against on-heap and off-heap mode. Cache size is
+     * 256 MB by default; for a multi-GB run use e.g.
+     *   java -Dcache.mb=4096 -Xmx8g -XX:MaxDirectMemorySize=6g Exercise02_Solution
+     */
+    private static void testOffHeap() {
+        int cacheMb = Integer.getInteger("cache.mb", 256);
+        System.out.println("--- Off-Heap Values (" + cacheMb + " MB cache) ---");
+
+        OffHeapCache<String, String> text = ConcurrentCache.newBuilder()
+            .maximumWeight(1 << 20)
+            .buildOffHeap(new ValueCodec<String>() {
+                @Override public byte[] encode(String value) { return value.getBytes(StandardCharsets.UTF_8); }
+                @Override public String decode(byte[] bytes) { return new String(bytes, StandardCharsets.UTF_8); }
+            });
+        text.put("greeting", "hello, off-heap");
+        System.out.println("Round trip: " + text.get("greeting"));  // hello, off-heap
+        text.put("greeting", "replaced");
+        System.out.println("After replace: " + text.get("greeting") + " (slot bytes " + text.weightedSize() + ")");  // 64
+        // The only slab is carved into 64 B slots; a 128 B value evicts its way to it
+        boolean stored = text.put("essay", String.join("", Collections.nCopies(10, "0123456789")));
+        System.out.println("100 B value: stored " + stored + ", greeting now " + text.get("greeting"));  // true, null
+
+        long budget = (long) cacheMb << 20;
+        ValueCodec<byte[]> identity = new ValueCodec<byte[]>() {
+            @Override public byte[] encode(byte[] value) { return value; }
+            @Override public byte[] decode(byte[] bytes) { return bytes; }
+        };
+
+        long before = usedHeap();
+        ConcurrentCache<Integer, byte[]> onHeap = ConcurrentCache.newBuilder()
+            .maximumWeight(budget).weigher(new HeapWeigher()).build();
+        long[] onGc = churn(budget, onHeap::put, onHeap::get);
+        long onHeapBytes = usedHeap() - before;
+        System.out.printf("  on-heap:  heap %,5d MB   GCs %,4d   GC time %,6d ms   (%,d entries)%n",
+            onHeapBytes >> 20, onGc[0], onGc[1], onHeap.size());
+        onHeap = null;
+
+        before = usedHeap();
+        OffHeapCache<Integer, byte[]> offHeap = ConcurrentCache.newBuilder()
+            .maximumWeight(budget).buildOffHeap(identity);
+        long[] offGc = churn(budget, offHeap::put, offHeap::get);
+        long offHeapBytes = usedHeap() - before;
+        System.out.printf("  off-heap: heap %,5d MB   GCs %,4d   GC time %,6d ms   (%,d entries, %,d MB direct)%n",
+            offHeapBytes >> 20, offGc[0], offGc[1], offHeap.size(), offHeap.reservedBytes() >> 20);
+        System.out.println();
+    }
+
+    /**
+     * Restart simulation: how many requests until a fresh cache gets back
+     * to 90% of its steady-state hit rate, empty vs loaded from a snapshot.
+     * Each miss is charged a modelled 1 ms backend call.
+     */
+    private static void testWarmStart() {
+        System.out.println("--- Snapshot and Warm Start ---");
+        ValueCodec<Integer> ints = new ValueCodec<Integer>() {
+            @Override public byte[] encode(Integer value) { return ByteBuffer.allocate(4).putInt(value).array(); }
+            @Override public Integer decode(byte[] bytes) { return ByteBuffer.wrap(bytes).getInt(); }
+        };
+        int cacheSize = 5_000;
+        ZipfKeys zipf = new ZipfKeys(100_000, 1.0);
+        Random rand = new Random(11);
+
+        ConcurrentCache<Integer, Integer> before = new ConcurrentCache<>(cacheSize, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 400_000; i++) {
+            int key = zipf.next(rand);
+            if (before.get(key) == null) {
+                before.put(key, key);
+            }
+        }
+        int[] probe = new int[100_000];
+        for (int i = 0; i < probe.length; i++) {
+            probe[i] = zipf.next(rand);
+        }
+        double steadyHitRate = replay(probe, before::get, before::put);
+        double target = 0.9 * steadyHitRate;
+        System.out.printf("Steady-state hit rate: %.1f%%, target after restart: %.1f%%%n",
+            steadyHitRate * 100, target * 100);
+
+        Path file;
+        try {
+            file = Files.createTempFile("cache", ".snapshot");
+            // Traffic keeps running during the snapshot
+            AtomicLong opsDuring = new AtomicLong();
+            Thread traffic = new Thread(() -> {
+                Random r = new Random(5);
+                while (!Thread.currentThread().isInterrupted()) {
+                    before.get(zipf.next(r));
+                    opsDuring.incrementAndGet();
+                }
+            });
+            traffic.start();
+            long start = System.nanoTime();
+            int written = before.snapshot(file, ints, ints);
+            long snapshotMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            traffic.interrupt();
+            traffic.join();
+            System.out.printf("snapshot(): %,d entries, %,d KB in %d ms (%,d reads served meanwhile)%n",
+                written, Files.size(file) >> 10, snapshotMillis, opsDuring.get());
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Snapshot failed: " + e);
+            return;
+        }
+
+        int[] afterRestart = new int[300_000];
+        for (int i = 0; i < afterRestart.length; i++) {
+            afterRestart[i] = zipf.next(rand);
+        }
+
+        ConcurrentCache<Integer, Integer> cold = new ConcurrentCache<>(cacheSize, 1, TimeUnit.HOURS);
+        long[] coldResult = requestsToHitRate(afterRestart, cold, target);
+
+        ConcurrentCache<Integer, Integer> warm = new ConcurrentCache<>(cacheSize, 1, TimeUnit.HOURS);
+        try {
+            long start = System.nanoTime();
+            int restored = warm.load(file, ints, ints);
+            System.out.printf("load(): %,d entries in %d ms%n",
+                restored, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println("Load failed: " + e);
+            return;
+        }
+        long[] warmResult = requestsToHitRate(afterRestart, warm, target);
+
+        System.out.printf("  empty start:    %,7d requests, %,6d misses (~%,d ms of backend time)%n",
+            coldResult[0], coldResult[1], coldResult[1]);
+        System.out.printf("  from snapshot:  %,7d requests, %,6d misses (~%,d ms of backend time)%n",
+            warmResult[0], warmResult[1], warmResult[1]);
+        System.out.println();
+    }
+
+    private static void testBulkOperations() {
+        System.out.println("--- Bulk Operations ---");
+        ConcurrentCache<Integer, String> cache = ConcurrentCache.newBuilder()
+            .maximumSize(100_000).recordStats().build();
+        Map<Integer, String> initial = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            initial.put(i, "v" + i);
+        }
+        cache.putAll(initial);
+        AtomicLong loaderCalls = new AtomicLong();
+        Function<Set<Integer>, Map<Integer, String>> bulkLoader = missing -> {
+            loaderCalls.incrementAndGet();
+            Map<Integer, String> loaded = new HashMap<>();
+            for (Integer key : missing) {
+                loaded.put(key, "loaded" + key);
+            }
+            return loaded;
+        };
+        System.out.println("getAll(3..7): " + cache.getAll(Arrays.asList(3, 4, 5, 6, 7), bulkLoader));
+        System.out.println("Loader calls: " + loaderCalls.get() + ", " + cache.stats());  // 1 call, keys 5-7
+        cache.invalidateAll(Arrays.asList(0, 1, 2));
+        System.out.println("After invalidateAll(0..2), size: " + cache.size());  // 5
+
+        // Per-key cost by batch size. The loader models a remote call:
+        // 50 us round trip per CALL, nothing extra per key.
+        System.out.println("  batch   ns/key   (batch 1 = key-by-key with one load per miss)");
+        int totalKeys = 20_000;
+        for (int batch = 1; batch <= 1_000; batch *= 10) {
+            ConcurrentCache<Integer, Integer> bench = new ConcurrentCache<>(50_000, 1, TimeUnit.HOURS);
+            Function<Set<Integer>, Map<Integer, Integer>> remote = missing -> {
+                LockSupport.parkNanos(50_000);
+                Map<Integer, Integer> loaded = new HashMap<>();
+                for (Integer key : missing) {
+                    loaded.put(key, key);
+                }
+                return loaded;
+            };
+            Random rand = new Random(batch);
+            List<Integer> keys = new ArrayList<>(batch);
+            long start = System.nanoTime();
+            for (int done = 0; done < totalKeys; done += batch) {
+                keys.clear();
+                for (int i = 0; i < batch; i++) {
+                    keys.add(rand.nextInt(100_000));  // About half will miss
+                }
+                bench.getAll(keys, remote);
+            }
+            long nanosPerKey = (System.nanoTime() - start) / totalKeys;
+            System.out.printf("  %5d  %,7d%n", batch, nanosPerKey);
+        }
+        System.out.println();
+    }
+
+    /** {requests, misses} until the hit rate over the last 1,000 requests reaches target. */
+    private static long[] requestsToHitRate(int[] trace, ConcurrentCache<Integer, Integer> cache, double target) {
+        boolean[] window = new boolean[1_000];
+        int windowHits = 0;
+        long misses = 0;
+        for (int i = 0; i < trace.length; i++) {
+            boolean hit = cache.get(trace[i]) != null;
+            if (!hit) {
+                cache.put(trace[i], trace[i]);
+                misses++;
+            }
+            int slot = i % window.length;
+            windowHits += (hit ? 1 : 0) - (window[slot] ? 1 : 0);
+            window[slot] = hit;
+            if (i >= window.length && windowHits >= target * window.length) {
+                return new long[] {i + 1, misses};
+            }
+        }
+        return new long[] {trace.length, misses};
+    }
+
+    /**
+     * Write 4x the budget in 1-16 KB values with 3 reads per write, and
+     * return {GC count, GC milliseconds} spent meanwhile.
+     */
+    private static long[] churn(long budget, java.util.function.BiConsumer<Integer, byte[]> put,
+                                Function<Integer, byte[]> get) {
+        long[] gcBefore = gcTotals();
+        Random rand = new Random(7);
+        int keys = (int) (budget / 8_192 * 2);  // About twice what fits
+        long written = 0;
+        while (written < 4 * budget) {
+            byte[] value = new byte[1_024 + rand.nextInt(15 * 1_024)];
+            value[0] = (byte) written;
+            put.accept(rand.nextInt(keys), value);
+            written += value.length;
+            for (int i = 0; i < 3; i++) {
+                get.apply(rand.nextInt(keys));
+            }
+        }
+        long[] gcAfter = gcTotals();
+        return new long[] {gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]};
+    }
+
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] {count, millis};
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void testFrequencyAdmission() {
+        System.out.println("--- Frequency-Aware Eviction ---");
+        ConcurrentCache<String, Integer> cache =
+            new ConcurrentCache<>(3, 1, TimeUnit.MINUTES);
+
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        cache.get("a");       // a has now been seen twice
+        cache.put("d", 4);    // c leaves the window, but is no more popular
+                              // than the victim (b) - so c is rejected
+        cache.cleanup();      // Apply any buffered bookkeeping
+
+        System.out.println("get(a): " + cache.get("a"));  // 1
+        System.out.println("get(b): " + cache.get("b"));  // 2
+        System.out.println("get(c): " + cache.get("c"));  // null (not admitted)
+        System.out.println("Size: " + cache.size());      // 3
         System.out.println();
     }
 
     private static void testConcurrentAccess() throws InterruptedException {
         System.out.println("--- Concurrent Access ---");
-        ConcurrentCache<Integer, Integer> cache = 
+        ConcurrentCache<Integer, Integer> cache =
             new ConcurrentCache<>(1000, 1, TimeUnit.MINUTES);
 
         int numThreads = 4;
@@ -69,7 +616,7 @@ public class Exercise02_Solution {
             threads[i] = new Thread(() -> {
                 Random rand = new Random(threadId);
                 for (int j = 0; j < opsPerThread; j++) {
-                    int key = rand.nextInt(500);
+                    int key = rand.nextInt(2000);
                     if (rand.nextBoolean()) {
                         cache.get(key);
                     } else {
@@ -83,196 +630,2311 @@ public class Exercise02_Solution {
         for (Thread t : threads) t.join();
 
         long endTime = System.currentTimeMillis();
-        System.out.println("Completed " + (numThreads * opsPerThread) + 
+        cache.cleanup();
+        System.out.println("Completed " + (numThreads * opsPerThread) +
             " operations in " + (endTime - startTime) + "ms");
-        System.out.println("Final cache size: " + cache.size());
+        System.out.println("Final cache size (max 1000): " + cache.size());
+        System.out.println();
+    }
+
+    /**
+     * Read-heavy workload (90% get) at increasing thread counts. The
+     * ConcurrentHashMap-based cache should keep scaling with cores; the
+     * old LinkedHashMap + ReadWriteLock design flattens out. (On a single
+     * core the plain lock is cheaper - there is nobody to contend with.)
+     */
+    private static void testReadScaling() throws InterruptedException {
+        System.out.println("--- Read Scaling (90% reads, ops/sec) ---");
+        // Warm up both implementations so the JIT doesn't favour either
+        ConcurrentCache<Integer, Integer> warmCache =
+            new ConcurrentCache<>(10_000, 1, TimeUnit.MINUTES);
+        RwLockLruCache<Integer, Integer> warmBaseline = new RwLockLruCache<>(10_000);
+        measure(2, warmCache::get, warmCache::put);
+        measure(2, warmBaseline::get, warmBaseline::put);
+
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ConcurrentCache<Integer, Integer> cache =
+                new ConcurrentCache<>(10_000, 1, TimeUnit.MINUTES);
+            RwLockLruCache<Integer, Integer> baseline = new RwLockLruCache<>(10_000);
+            long newOps = measure(threads, cache::get, cache::put);
+            long oldOps = measure(threads, baseline::get, baseline::put);
+            System.out.printf("  %2d thread(s): ConcurrentCache %,11d   RwLock+LinkedHashMap %,11d%n",
+                threads, newOps, oldOps);
+        }
+        System.out.println();
+    }
+
+    /**
+     * Trace-driven simulation: replay the same key sequence against exact
+     * LRU and against ConcurrentCache (W-TinyLFU) and compare hit rates.
+     * A miss is followed by a put, like a read-through cache.
+     */
+    private static void testHitRates() {
+        System.out.println("--- Hit Rates: LRU vs W-TinyLFU (cache size 1,000) ---");
+        int cacheSize = 1_000;
+        int length = 500_000;
+        Random rand = new Random(42);
+        ZipfKeys zipf = new ZipfKeys(100_000, 0.9);
+
+        int[] zipfTrace = new int[length];
+        for (int i = 0; i < length; i++) {
+            zipfTrace[i] = zipf.next(rand);
+        }
+
+        // Zipf traffic interrupted by long scans over keys never seen again
+        int[] scanTrace = new int[length];
+        int nextScanKey = 1_000_000;
+        for (int i = 0; i < length; i++) {
+            boolean scanning = (i / 5_000) % 2 == 1;
+            scanTrace[i] = scanning ? nextScanKey++ : zipf.next(rand);
+        }
+
+        // Cycle over slightly more keys than fit: the classic LRU worst case
+        int[] loopTrace = new int[length];
+        for (int i = 0; i < length; i++) {
+            loopTrace[i] = i % (cacheSize * 5 / 4);
+        }
+
+        String[] names = {"zipf(0.9)", "zipf + scans", "loop"};
+        int[][] traces = {zipfTrace, scanTrace, loopTrace};
+        for (int t = 0; t < traces.length; t++) {
+            RwLockLruCache<Integer, Integer> lru = new RwLockLruCache<>(cacheSize);
+            ConcurrentCache<Integer, Integer> tinyLfu =
+                new ConcurrentCache<>(cacheSize, 1, TimeUnit.HOURS);
+            double lruHits = replay(traces[t], lru::get, lru::put);
+            double tinyLfuHits = replay(traces[t], tinyLfu::get, tinyLfu::put);
+            System.out.printf("  %-13s LRU %5.1f%%   W-TinyLFU %5.1f%%%n",
+                names[t], lruHits * 100, tinyLfuHits * 100);
+        }
         System.out.println();
     }
+
+    private static double replay(int[] trace, Function<Integer, Integer> get,
+                                 java.util.function.BiConsumer<Integer, Integer> put) {
+        int hits = 0;
+        for (int key : trace) {
+            if (get.apply(key) != null) {
+                hits++;
+            } else {
+                put.accept(key, key);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    private static long measure(int numThreads, Function<Integer, Integer> get,
+                                java.util.function.BiConsumer<Integer, Integer> put)
+            throws InterruptedException {
+        for (int key = 0; key < 10_000; key++) {
+            put.accept(key, key);
+        }
+        int opsPerThread = 500_000;
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                for (int i = 0; i < opsPerThread; i++) {
+                    int key = rand.nextInt(20_000);
+                    if (rand.nextInt(10) == 0) {
+                        put.accept(key, i);
+                    } else {
+                        get.apply(key);
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        return (long) numThreads * opsPerThread * 1_000_000_000L / (System.nanoTime() - start);
+    }
+}
+
+/** Keys 0..n-1 with a Zipf distribution (key k has weight 1 / (k + 1)^skew). */
+class ZipfKeys {
+    private final double[] cdf;
+
+    ZipfKeys(int n, double skew) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, skew);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= sum;
+        }
+    }
+
+    int next(Random rand) {
+        int index = Arrays.binarySearch(cdf, rand.nextDouble());
+        return index >= 0 ? index : Math.min(-index - 1, cdf.length - 1);
+    }
 }
 
 class ConcurrentCache<K, V> {
-    private final int maxSize;
+    /** Most read buffer stripes we will ever use. */
+    private static final int MAX_READ_BUFFERS =
+        ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+
+    // Snapshot file: header, chunks of records, then an index of the chunks
+    private static final int SNAPSHOT_MAGIC = 0x43435331;  // "CCS1"
+    private static final int SNAPSHOT_CHUNK = 4_096;       // Records per chunk
+
+    private final long maximum;        // Entry count, or total weight with a weigher
+    private final Weigher<? super K, ? super V> weigher;  // null = every entry weighs 1
     private final long expirationNanos;
-    private final Map<K, CacheEntry<V>> cache;
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    private final Lock readLock = rwLock.readLock();
-    private final Lock writeLock = rwLock.writeLock();
+    private final long refreshNanos;   // 0 = never refresh
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
 
-    private static class CacheEntry<V> {
-        V value;
-        long createdAt;
-        volatile long accessedAt;
+    // Everything below is owned by the thread holding evictionLock
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer<K, V>[] readBuffers;
+
+    // W-TinyLFU: a small LRU "window" in front of a segmented LRU main region.
+    // Limits are in weight units (= entries when there is no weigher).
+    private final long windowMax;      // ~1% of the maximum
+    private final long mainMax;        // the rest
+    private final long protectedMax;   // 80% of the main region
+    private final AccessOrderDeque<K, V> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K, V> protectedQueue = new AccessOrderDeque<>();
+    private final FrequencySketch sketch;
+    private final TimerWheel<K, V> timerWheel;
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    // Async loading: at most one in-flight load per key, run on executor
+    private final Executor executor;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    // DISABLED unless the builder asked for recordStats()
+    private final StatsCounter stats;
+    private final RemovalListener<K, V> removalListener;  // null = nobody cares
 
-        CacheEntry(V value) {
+    // Refresh metrics (LongAdder: many threads add, rarely anyone reads)
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder refreshTimeNanos = new LongAdder();
+
+    /**
+     * A cache entry. The key and value never change after construction:
+     * put() on an existing key installs a NEW node and retires the old one.
+     * prev/next are only touched under evictionLock.
+     */
+    static final class Node<K, V> {
+        final K key;
+        final V value;
+        final long writeTime;  // System.nanoTime() when the value was stored
+        final long expiresAt;  // System.nanoTime() deadline
+        final int weight;      // From the weigher, fixed for the node's life
+        Node<K, V> prev;
+        Node<K, V> next;
+        AccessOrderDeque<K, V> queue;  // The deque this node is in, or null
+        Node<K, V> prevInWheel;        // Timer wheel bucket links
+        Node<K, V> nextInWheel;
+
+        Node(K key, V value, long writeTime, long expiresAt, int weight) {
+            this.key = key;
             this.value = value;
-            this.createdAt = System.nanoTime();
-            this.accessedAt = createdAt;
+            this.writeTime = writeTime;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
         }
 
-        void touch() {
-            this.accessedAt = System.nanoTime();
+        /** The time-to-live it was stored with (capped, for "forever"). */
+        long ttlNanos() {
+            return expiresAt - writeTime;
         }
     }
 
     public ConcurrentCache(int maxSize, long expiration, TimeUnit unit) {
-        this.maxSize = maxSize;
-        this.expirationNanos = unit.toNanos(expiration);
-        this.cache = new LinkedHashMap<>(16, 0.75f, true);  // Access-order
+        this(maxSize, expiration, unit, ForkJoinPool.commonPool());
     }
 
-    public V get(K key) {
-        readLock.lock();
-        try {
-            CacheEntry<V> entry = cache.get(key);
-            if (entry == null) {
-                return null;
+    /** @param executor runs the loaders passed to getAsync() */
+    public ConcurrentCache(int maxSize, long expiration, TimeUnit unit, Executor executor) {
+        this(newBuilder().maximumSize(maxSize).expireAfterWrite(expiration, unit).executor(executor));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private ConcurrentCache(Builder builder) {
+        this.maximum = builder.maximum;
+        this.weigher = (Weigher<? super K, ? super V>) builder.weigher;
+        this.executor = builder.executor;
+        this.expirationNanos = builder.expireAfterWriteNanos;
+        this.refreshNanos = builder.refreshAfterWriteNanos;
+        this.stats = builder.recordStats ? new ConcurrentStatsCounter() : StatsCounter.DISABLED;
+        this.removalListener = (RemovalListener<K, V>) builder.removalListener;
+        this.windowMax = Math.max(1, maximum / 100);
+        this.mainMax = Math.max(0, maximum - windowMax);
+        this.protectedMax = mainMax * 8 / 10;
+        // With a weigher the entry count is unknown up front; the sketch
+        // starts small and grows with the cache (see addTask)
+        this.sketch = new FrequencySketch(weigher == null ? (int) maximum : 64);
+        this.timerWheel = new TimerWheel<>(System.nanoTime(), this::expire);
+        this.readBuffers = new ReadBuffer[MAX_READ_BUFFERS];
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    /**
+     * Settings beyond maxSize and expiration. Constructors cover the common
+     * case; the builder keeps the optional ones from multiplying them.
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * How much of the cache's budget an entry uses, e.g. its size in bytes.
+     * Called once per put(); the result must not change for that value.
+     */
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    public interface RemovalListener<K, V> {
+        void onRemoval(K key, V value, RemovalCause cause);
+    }
+
+    static final class Builder {
+        private long maximum = 10_000;
+        private boolean maximumIsWeight;
+        private Weigher<?, ?> weigher;
+        private long expireAfterWriteNanos = Long.MAX_VALUE;
+        private long refreshAfterWriteNanos;
+        private Executor executor = ForkJoinPool.commonPool();
+        private boolean recordStats;
+        private RemovalListener<?, ?> removalListener;
+
+        public Builder maximumSize(int maximumSize) {
+            this.maximum = maximumSize;
+            this.maximumIsWeight = false;
+            return this;
+        }
+
+        /** Bound by total weight instead of entry count; needs a weigher. */
+        public Builder maximumWeight(long maximumWeight) {
+            this.maximum = maximumWeight;
+            this.maximumIsWeight = true;
+            return this;
+        }
+
+        public Builder weigher(Weigher<?, ?> weigher) {
+            this.weigher = Objects.requireNonNull(weigher);
+            return this;
+        }
+
+        public Builder expireAfterWrite(long duration, TimeUnit unit) {
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Once an entry is this old, the next read through getAsync() or
+         * computeIfAbsent() still returns it immediately, but also starts
+         * ONE background reload with that call's loader. Should be shorter
+         * than expireAfterWrite, or entries expire before they refresh.
+         */
+        public Builder refreshAfterWrite(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Refresh interval must be positive");
             }
-            if (isExpired(entry)) {
-                // Need to remove - upgrade to write lock
-                readLock.unlock();
-                writeLock.lock();
-                try {
-                    cache.remove(key);
-                    return null;
-                } finally {
-                    writeLock.unlock();
-                    readLock.lock();  // Downgrade back
-                }
+            this.refreshAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder executor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /** Count hits, misses, loads and evictions; see stats(). */
+        public Builder recordStats() {
+            this.recordStats = true;
+            return this;
+        }
+
+        /**
+         * Called once for every entry that leaves the cache, on the thread
+         * that removed it (possibly during maintenance) - keep it short.
+         */
+        public Builder removalListener(RemovalListener<?, ?> removalListener) {
+            this.removalListener = Objects.requireNonNull(removalListener);
+            return this;
+        }
+
+        public <K, V> ConcurrentCache<K, V> build() {
+            if (maximum <= 0) {
+                throw new IllegalArgumentException("Maximum size/weight must be positive");
             }
-            entry.touch();
-            return entry.value;
-        } finally {
-            readLock.unlock();
+            if (maximumIsWeight && weigher == null) {
+                throw new IllegalStateException("maximumWeight requires a weigher");
+            }
+            return new ConcurrentCache<>(this);
+        }
+
+        /**
+         * Off-heap mode: maximumWeight becomes a budget in bytes of direct
+         * memory, and values are stored there in codec's encoding. A
+         * removal listener set here still sees the decoded values.
+         *
+         * The index is built from a copy, so this builder is left as it was
+         * and can be reused.
+         */
+        @SuppressWarnings("unchecked")
+        public <K, V> OffHeapCache<K, V> buildOffHeap(ValueCodec<V> codec) {
+            if (maximum <= 0) {
+                throw new IllegalArgumentException("Maximum weight must be positive");
+            }
+            return new OffHeapCache<>(copy(), maximum, codec, (RemovalListener<Object, V>) removalListener);
+        }
+
+        private Builder copy() {
+            Builder copy = new Builder();
+            copy.maximum = maximum;
+            copy.maximumIsWeight = maximumIsWeight;
+            copy.weigher = weigher;
+            copy.expireAfterWriteNanos = expireAfterWriteNanos;
+            copy.refreshAfterWriteNanos = refreshAfterWriteNanos;
+            copy.executor = executor;
+            copy.recordStats = recordStats;
+            copy.removalListener = removalListener;
+            return copy;
         }
     }
 
-    public void put(K key, V value) {
-        writeLock.lock();
-        try {
-            // Evict if at capacity
-            if (cache.size() >= maxSize && !cache.containsKey(key)) {
-                evictOldest();
+    public V get(K key) {
+        Node<K, V> node = getLiveNode(key);
+        return node == null ? null : node.value;
+    }
+
+    /** The node for key if present and not expired, recording the access. */
+    private Node<K, V> getLiveNode(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            stats.recordMisses(1);
+            return null;
+        }
+        if (isExpired(node, System.nanoTime())) {
+            if (data.remove(key, node)) {
+                notifyRemoval(node, RemovalCause.EXPIRED);
+                afterWrite(() -> unlink(node));
             }
-            cache.put(key, new CacheEntry<>(value));
-        } finally {
-            writeLock.unlock();
+            stats.recordMisses(1);
+            return null;
+        }
+        stats.recordHits(1);
+        afterRead(node);
+        return node;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, expirationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Put with a per-entry time-to-live instead of the cache-wide one. */
+    public void put(K key, V value, long ttl, TimeUnit unit) {
+        afterWrite(putNode(key, value, System.nanoTime(), unit.toNanos(ttl)));
+    }
+
+    /** Install a new node; returns the policy task still to be run. */
+    private Runnable putNode(K key, V value, long now, long ttlNanos) {
+        Node<K, V> node = newNode(key, value, now, ttlNanos);
+        Node<K, V> old = data.put(key, node);
+        if (old != null) {
+            notifyRemoval(old, RemovalCause.REPLACED);
         }
+        return old == null ? addTask(node) : replaceTask(old, node);
     }
 
     public V putIfAbsent(K key, V value) {
-        writeLock.lock();
-        try {
-            CacheEntry<V> existing = cache.get(key);
-            if (existing != null && !isExpired(existing)) {
-                existing.touch();
+        long now = System.nanoTime();
+        Node<K, V> node = newNode(key, value, now, expirationNanos);
+        while (true) {
+            Node<K, V> existing = data.putIfAbsent(key, node);
+            if (existing == null) {
+                afterWrite(addTask(node));
+                return null;
+            }
+            if (!isExpired(existing, now)) {
+                afterRead(existing);
                 return existing.value;
             }
-            if (cache.size() >= maxSize) {
-                evictOldest();
+            // Existing entry expired: swap ours in, unless someone beat us
+            if (data.replace(key, existing, node)) {
+                notifyRemoval(existing, RemovalCause.EXPIRED);
+                afterWrite(replaceTask(existing, node));
+                return null;
             }
-            cache.put(key, new CacheEntry<>(value));
-            return null;
-        } finally {
-            writeLock.unlock();
         }
     }
 
+    /**
+     * Return the cached value, computing it if absent or expired.
+     *
+     * ConcurrentHashMap.compute() guarantees the function runs at most once
+     * per key at a time, and only blocks callers whose keys share its bin.
+     * For slow loaders prefer getAsync(), which holds no lock at all.
+     */
     public V computeIfAbsent(K key, Function<K, V> mappingFunction) {
-        // Try read first
-        readLock.lock();
-        try {
-            CacheEntry<V> entry = cache.get(key);
-            if (entry != null && !isExpired(entry)) {
-                entry.touch();
-                return entry.value;
-            }
-        } finally {
-            readLock.unlock();
+        // Lock-free fast path for hits
+        Node<K, V> node = data.get(key);
+        if (node != null && !isExpired(node, System.nanoTime())) {
+            stats.recordHits(1);
+            afterRead(node);
+            refreshIfNeeded(node, mappingFunction);
+            return node.value;
         }
 
-        // Need to compute - use write lock
-        writeLock.lock();
+        ComputeOutcome<K, V> outcome = new ComputeOutcome<>();
+        Node<K, V> result;
         try {
-            // Double-check after acquiring write lock
-            CacheEntry<V> entry = cache.get(key);
-            if (entry != null && !isExpired(entry)) {
-                entry.touch();
-                return entry.value;
-            }
-            
-            V newValue = mappingFunction.apply(key);
-            if (newValue != null) {
-                if (cache.size() >= maxSize) {
-                    evictOldest();
+            result = data.compute(key, (k, existing) -> {
+                if (existing != null && !isExpired(existing, System.nanoTime())) {
+                    return existing;
                 }
-                cache.put(key, new CacheEntry<>(newValue));
+                outcome.replaced = existing;
+                V newValue = timedLoad(k, mappingFunction);
+                if (newValue == null) {
+                    return null;  // Removes an expired entry, caches nothing
+                }
+                outcome.created = newNode(k, newValue, System.nanoTime(), expirationNanos);
+                return outcome.created;
+            });
+        } catch (RuntimeException | Error e) {
+            stats.recordMisses(1);  // The load failed; recorded by timedLoad()
+            throw e;
+        }
+
+        if (outcome.replaced != null) {
+            notifyRemoval(outcome.replaced, RemovalCause.EXPIRED);
+        }
+        if (outcome.created != null) {
+            stats.recordMisses(1);
+            afterWrite(outcome.replaced == null
+                ? addTask(outcome.created)
+                : replaceTask(outcome.replaced, outcome.created));
+        } else if (outcome.replaced != null) {
+            stats.recordMisses(1);
+            Node<K, V> replaced = outcome.replaced;
+            afterWrite(() -> unlink(replaced));
+        } else if (result != null) {
+            stats.recordHits(1);  // Another thread computed it first
+            afterRead(result);
+        } else {
+            stats.recordMisses(1);
+        }
+        return result == null ? null : result.value;
+    }
+
+    /**
+     * Return the cached value, loading it on the executor if absent.
+     *
+     * Unlike computeIfAbsent(), the caller never waits inside the map:
+     * - Concurrent misses on the same key share ONE in-flight future
+     * - Misses on different keys load in parallel
+     * - No lock (not even a map bin) is held while the loader runs
+     * - A loader that throws fails the future and caches nothing, so the
+     *   next call tries again; a null result is returned but not cached
+     */
+    public CompletableFuture<V> getAsync(K key, Function<K, V> loader) {
+        Node<K, V> node = getLiveNode(key);
+        if (node != null) {
+            refreshIfNeeded(node, loader);
+            return CompletableFuture.completedFuture(node.value);
+        }
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;  // Someone is already loading this key
+        }
+        // A load may have finished between our miss and our putIfAbsent
+        // (not counted again: this caller already recorded its miss)
+        Node<K, V> loaded = data.get(key);
+        if (loaded != null && !isExpired(loaded, System.nanoTime())) {
+            inFlight.remove(key, future);
+            future.complete(loaded.value);
+            return future;
+        }
+
+        startLoad(key, future, () -> {
+            V value = timedLoad(key, loader);
+            // Cache first, so nobody misses in between
+            return value == null ? null : installLoaded(key, value, future, this::afterWrite);
+        });
+        return future;
+    }
+
+    /**
+     * Cache a getAsync() result unless the key was written while it
+     * loaded: a live entry is a newer put(), and a missing in-flight
+     * marker means remove() detached this load. Both are checked inside
+     * compute(), under the bin lock those writes take, so an older loaded
+     * value can never overwrite them. Returns the value callers should see;
+     * the policy task, if anything was cached, goes to writes.
+     */
+    private V installLoaded(K key, V value, CompletableFuture<V> future, Consumer<Runnable> writes) {
+        ComputeOutcome<K, V> outcome = new ComputeOutcome<>();
+        Node<K, V> result = data.compute(key, (k, existing) -> {
+            long now = System.nanoTime();
+            if (existing != null && !isExpired(existing, now)) {
+                return existing;
             }
-            return newValue;
-        } finally {
-            writeLock.unlock();
+            if (inFlight.get(k) != future) {
+                return existing;
+            }
+            outcome.replaced = existing;
+            outcome.created = newNode(k, value, now, expirationNanos);
+            return outcome.created;
+        });
+        if (outcome.created == null) {
+            return result != null && !isExpired(result, System.nanoTime())
+                ? result.value
+                : value;  // Invalidated meanwhile: answer this call, cache nothing
+        }
+        if (outcome.replaced != null) {
+            notifyRemoval(outcome.replaced, RemovalCause.EXPIRED);
         }
+        writes.accept(outcome.replaced == null
+            ? addTask(outcome.created)
+            : replaceTask(outcome.replaced, outcome.created));
+        return value;
     }
 
-    public V remove(K key) {
-        writeLock.lock();
-        try {
-            CacheEntry<V> removed = cache.remove(key);
-            return removed != null ? removed.value : null;
-        } finally {
-            writeLock.unlock();
+    /**
+     * Stale-while-revalidate: the caller already has node's value; if the
+     * node is due for refresh, reload it in the background. The in-flight
+     * map makes sure a hot key triggers ONE reload, not one per reader.
+     */
+    private void refreshIfNeeded(Node<K, V> node, Function<K, V> loader) {
+        if (refreshNanos == 0 || System.nanoTime() - node.writeTime < refreshNanos) {
+            return;
+        }
+        CompletableFuture<V> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(node.key, future) != null) {
+            return;  // Already reloading
         }
+        long start = System.nanoTime();
+        startLoad(node.key, future, () -> {
+            V value;
+            try {
+                value = timedLoad(node.key, loader);
+            } catch (RuntimeException | Error e) {
+                refreshFailures.increment();  // Keep serving the old value
+                throw e;
+            }
+            refreshes.increment();
+            refreshTimeNanos.add(System.nanoTime() - start);
+            if (value == null) {
+                return node.value;
+            }
+            // Only swap in if nobody wrote a newer value meanwhile. Keep the
+            // node's own TTL: it may have come from put(k, v, ttl, unit)
+            Node<K, V> refreshed = newNode(node.key, value, System.nanoTime(), node.ttlNanos());
+            if (data.replace(node.key, node, refreshed)) {
+                notifyRemoval(node, RemovalCause.REPLACED);
+                afterWrite(replaceTask(node, refreshed));
+            }
+            return value;
+        });
     }
 
-    public int size() {
-        readLock.lock();
+    /** Run the loader, recording its time as a load success or failure. */
+    private V timedLoad(K key, Function<K, V> loader) {
+        long start = System.nanoTime();
+        V value;
         try {
-            return cache.size();
-        } finally {
-            readLock.unlock();
+            value = loader.apply(key);
+        } catch (RuntimeException | Error e) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw e;
         }
+        if (value == null) {
+            stats.recordLoadFailure(System.nanoTime() - start);  // Nothing to cache
+        } else {
+            stats.recordLoadSuccess(System.nanoTime() - start);
+        }
+        return value;
     }
 
-    public void cleanup() {
-        writeLock.lock();
+    /** Run load on the executor, then complete future and leave inFlight. */
+    private void startLoad(K key, CompletableFuture<V> future, Callable<V> load) {
         try {
-            cache.entrySet().removeIf(e -> isExpired(e.getValue()));
-        } finally {
-            writeLock.unlock();
+            executor.execute(() -> {
+                try {
+                    V value = load.call();
+                    inFlight.remove(key, future);
+                    future.complete(value);
+                } catch (Throwable t) {
+                    inFlight.remove(key, future);
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
         }
     }
 
-    private boolean isExpired(CacheEntry<?> entry) {
-        return System.nanoTime() - entry.createdAt > expirationNanos;
+    /** Background reloads that completed (successfully) so far. */
+    public long refreshCount() {
+        return refreshes.sum();
+    }
+
+    public long refreshFailureCount() {
+        return refreshFailures.sum();
     }
 
-    private void evictOldest() {
-        Iterator<Map.Entry<K, CacheEntry<V>>> it = cache.entrySet().iterator();
-        if (it.hasNext()) {
-            it.next();
-            it.remove();
+    /** Mean loader time of successful refreshes, in nanoseconds. */
+    public long averageRefreshNanos() {
+        long count = refreshes.sum();
+        return count == 0 ? 0 : refreshTimeNanos.sum() / count;
+    }
+
+    /**
+     * Look up many keys at once. Hits are resolved in one pass; the
+     * missing keys (if any) go to bulkLoader in ONE call, without any lock
+     * held. The policy bookkeeping for the whole batch costs one lock
+     * acquisition instead of one per key.
+     *
+     * While the loader runs, the missing keys carry an in-flight marker,
+     * exactly like a getAsync() load: loaded values are cached through
+     * installLoaded(), so a put() or remove() that lands meanwhile wins
+     * over them, and a getAsync() for one of those keys waits for this
+     * load instead of starting its own. A key that some other load had
+     * already marked is returned but left for that load to cache.
+     *
+     * @return the present and loaded values, in the order of keys
+     */
+    public Map<K, V> getAll(Iterable<? extends K> keys,
+                            Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        Map<K, V> found = new HashMap<>();
+        Set<K> missing = new LinkedHashSet<>();
+        List<K> order = new ArrayList<>();
+        List<Node<K, V>> hits = new ArrayList<>();
+        List<Runnable> writes = new ArrayList<>();
+        long now = System.nanoTime();
+        for (K key : keys) {
+            if (found.containsKey(key) || missing.contains(key)) {
+                continue;  // Duplicate key in the request
+            }
+            order.add(key);
+            Node<K, V> node = data.get(key);
+            if (node != null && !isExpired(node, now)) {
+                hits.add(node);
+                found.put(key, node.value);
+                continue;
+            }
+            if (node != null && data.remove(key, node)) {
+                notifyRemoval(node, RemovalCause.EXPIRED);
+                writes.add(() -> unlink(node));
+            }
+            missing.add(key);
+        }
+        stats.recordHits(hits.size());
+        stats.recordMisses(missing.size());
+        afterReads(hits);
+
+        if (!missing.isEmpty()) {
+            Map<K, CompletableFuture<V>> markers = new HashMap<>();
+            for (K key : missing) {
+                CompletableFuture<V> marker = new CompletableFuture<>();
+                if (inFlight.putIfAbsent(key, marker) == null) {
+                    markers.put(key, marker);
+                }
+            }
+            Map<? extends K, ? extends V> loaded;
+            try {
+                loaded = bulkLoad(missing, bulkLoader);
+            } catch (RuntimeException | Error e) {
+                markers.forEach((key, marker) -> {
+                    inFlight.remove(key, marker);
+                    marker.completeExceptionally(e);
+                });
+                afterWrites(writes);
+                throw e;
+            }
+            for (K key : missing) {
+                V value = loaded.get(key);
+                CompletableFuture<V> marker = markers.get(key);
+                if (value != null) {
+                    found.put(key, marker == null ? value : installLoaded(key, value, marker, writes::add));
+                }
+                if (marker != null) {
+                    inFlight.remove(key, marker);
+                    marker.complete(found.get(key));
+                }
+            }
+        }
+        afterWrites(writes);
+
+        Map<K, V> result = new LinkedHashMap<>();
+        for (K key : order) {
+            V value = found.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    private Map<? extends K, ? extends V> bulkLoad(Set<K> missing,
+            Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        long start = System.nanoTime();
+        Map<? extends K, ? extends V> loaded;
+        try {
+            loaded = bulkLoader.apply(Collections.unmodifiableSet(missing));
+        } catch (RuntimeException | Error e) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        if (loaded == null) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            return Collections.emptyMap();
+        }
+        stats.recordLoadSuccess(System.nanoTime() - start);
+        return loaded;
+    }
+
+    /** put() for every entry, with one maintenance pass for the batch. */
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        List<Runnable> writes = new ArrayList<>(entries.size());
+        long now = System.nanoTime();
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            writes.add(putNode(entry.getKey(), entry.getValue(), now, expirationNanos));
+        }
+        afterWrites(writes);
+    }
+
+    /** remove() for every key, with one maintenance pass for the batch. */
+    public void invalidateAll(Iterable<? extends K> keys) {
+        List<Runnable> writes = new ArrayList<>();
+        for (K key : keys) {
+            inFlight.remove(key);  // Detach a running load, see installLoaded()
+            Node<K, V> removed = data.remove(key);
+            if (removed != null) {
+                notifyRemoval(removed, RemovalCause.EXPLICIT);
+                writes.add(() -> unlink(removed));
+            }
+        }
+        afterWrites(writes);
+    }
+
+    /**
+     * Also detaches an in-progress getAsync() load of key: its callers
+     * still get the loaded value, but it is not cached over the removal.
+     */
+    public V remove(K key) {
+        inFlight.remove(key);  // Before the data: see installLoaded()
+        Node<K, V> removed = data.remove(key);
+        if (removed == null) {
+            return null;
+        }
+        notifyRemoval(removed, RemovalCause.EXPLICIT);
+        afterWrite(() -> unlink(removed));
+        return isExpired(removed, System.nanoTime()) ? null : removed.value;
+    }
+
+    /**
+     * Number of entries. Can briefly exceed the maximum between a put() and the
+     * maintenance pass that evicts for it.
+     */
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Total weight of the cached entries (the entry count when there is no
+     * weigher), after applying any pending bookkeeping.
+     */
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            maintenance();
+            return window.weight() + probation.weight() + protectedQueue.weight();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * A point-in-time copy of the counters. All zero unless the cache was
+     * built with recordStats().
+     */
+    public CacheStats stats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Expose stats() through JMX (jconsole, VisualVM, any JMX exporter)
+     * as "concurrent-cache:type=ConcurrentCache,name=<name>".
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("concurrent-cache:type=ConcurrentCache,name=" + ObjectName.quote(name));
+        CacheStatsMXBean bean = new CacheStatsMXBean() {
+            @Override public long getHitCount() { return stats().hitCount; }
+            @Override public long getMissCount() { return stats().missCount; }
+            @Override public double getHitRate() { return stats().hitRate(); }
+            @Override public long getLoadSuccessCount() { return stats().loadSuccessCount; }
+            @Override public long getLoadFailureCount() { return stats().loadFailureCount; }
+            @Override public double getAverageLoadPenaltyMillis() { return stats().averageLoadPenaltyNanos() / 1e6; }
+            @Override public long getSizeEvictionCount() { return stats().evictionCount(RemovalCause.SIZE); }
+            @Override public long getExpiredEvictionCount() { return stats().evictionCount(RemovalCause.EXPIRED); }
+            @Override public long getExplicitRemovalCount() { return stats().evictionCount(RemovalCause.EXPLICIT); }
+            @Override public long getEstimatedSize() { return size(); }
+        };
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(new StandardMBean(bean, CacheStatsMXBean.class, true), objectName);
+        return objectName;
+    }
+
+    /** Management interface for registerMBean(); must be public for JMX. */
+    public interface CacheStatsMXBean {
+        long getHitCount();
+        long getMissCount();
+        double getHitRate();
+        long getLoadSuccessCount();
+        long getLoadFailureCount();
+        double getAverageLoadPenaltyMillis();
+        long getSizeEvictionCount();
+        long getExpiredEvictionCount();
+        long getExplicitRemovalCount();
+        long getEstimatedSize();
+    }
+
+    /**
+     * Apply all buffered bookkeeping now, including expiration.
+     *
+     * There is no full scan any more: expired entries are found through the
+     * timer wheel, which every maintenance pass advances anyway. Readers and
+     * writers are never blocked while this runs.
+     */
+    public void cleanup() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evict the entry the policy values least - probation's LRU end, then
+     * the window's, then protected's - even though the weight is within
+     * budget. For OffHeapCache, whose slab memory can run out first.
+     * False if the cache is empty.
+     */
+    boolean evictOne() {
+        evictionLock.lock();
+        try {
+            maintenance();
+            Node<K, V> victim = probation.first() != null ? probation.first()
+                : window.first() != null ? window.first() : protectedQueue.first();
+            if (victim == null) {
+                return false;
+            }
+            evict(victim);
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Write the live entries to file, with their remaining TTL and their
+     * access frequency, for a later load().
+     *
+     * Traffic keeps flowing: entries come from the map's weakly consistent
+     * iterator, and the eviction lock is only held briefly per chunk to
+     * read frequencies. Entries written meanwhile may or may not be
+     * included. The file is written to a temp file and renamed into place,
+     * so a crash never leaves a half-written snapshot behind.
+     *
+     * Layout (big-endian):
+     *   header:  magic, wall-clock millis at snapshot
+     *   record:  keyLength, valueLength, remainingTtlNanos, frequency, key, value
+     *   footer:  chunkCount, {offset, length} per chunk, footerOffset, magic
+     *
+     * @return the number of entries written
+     */
+    public int snapshot(Path file, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<long[]> chunks = new ArrayList<>();
+        int written = 0;
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(System.currentTimeMillis());
+                long position = 12;
+
+                Iterator<Node<K, V>> nodes = data.values().iterator();
+                List<Node<K, V>> batch = new ArrayList<>(SNAPSHOT_CHUNK);
+                int[] frequencies = new int[SNAPSHOT_CHUNK];
+                while (nodes.hasNext()) {
+                    batch.clear();
+                    long now = System.nanoTime();
+                    while (nodes.hasNext() && batch.size() < SNAPSHOT_CHUNK) {
+                        Node<K, V> node = nodes.next();
+                        if (!isExpired(node, now)) {
+                            batch.add(node);
+                        }
+                    }
+                    evictionLock.lock();  // The sketch is owned by the lock holder
+                    try {
+                        for (int i = 0; i < batch.size(); i++) {
+                            frequencies[i] = sketch.frequency(batch.get(i).key);
+                        }
+                    } finally {
+                        evictionLock.unlock();
+                    }
+
+                    long chunkStart = position;
+                    for (int i = 0; i < batch.size(); i++) {
+                        Node<K, V> node = batch.get(i);
+                        byte[] key = keyCodec.encode(node.key);
+                        byte[] value = valueCodec.encode(node.value);
+                        out.writeInt(key.length);
+                        out.writeInt(value.length);
+                        out.writeLong(Math.max(0, node.expiresAt - now));
+                        out.writeByte(frequencies[i]);
+                        out.write(key);
+                        out.write(value);
+                        position += 17 + key.length + value.length;
+                    }
+                    if (position > chunkStart) {
+                        chunks.add(new long[] {chunkStart, position - chunkStart});
+                        written += batch.size();
+                    }
+                }
+
+                out.writeInt(chunks.size());
+                for (long[] chunk : chunks) {
+                    out.writeLong(chunk[0]);
+                    out.writeLong(chunk[1]);
+                }
+                out.writeLong(position);
+                out.writeInt(SNAPSHOT_MAGIC);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException | Error e) {
+            // Don't leave a half-written temp file behind
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return written;
+    }
+
+    /**
+     * Warm this (normally empty, just-built) cache from a snapshot() file.
+     *
+     * Each chunk is memory-mapped - no read() copies through the page cache
+     * into a heap buffer - and decoded as a separate task on the executor,
+     * so large snapshots load in parallel. Time spent between snapshot and
+     * load counts against each entry's TTL. Restored entries bring their
+     * frequency with them, so if the snapshot is larger than this cache,
+     * the admission policy keeps the hot ones. Live writes that arrive
+     * during the load win over snapshot values.
+     *
+     * @return the number of entries restored
+     */
+    public int load(Path file, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+        List<CompletableFuture<Integer>> loads = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 12);
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - 12, 12);
+            long footer = trailer.getLong();
+            if (header.getInt() != SNAPSHOT_MAGIC || trailer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            long elapsedNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, System.currentTimeMillis() - header.getLong()));
+
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, footer, size - 12 - footer);
+            int chunkCount = index.getInt();
+            for (int i = 0; i < chunkCount; i++) {
+                // Mapped buffers stay valid after the channel is closed
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, index.getLong(), index.getLong());
+                loads.add(CompletableFuture.supplyAsync(
+                    () -> loadChunk(chunk, elapsedNanos, keyCodec, valueCodec), executor));
+            }
+        }
+        int restored = 0;
+        try {
+            for (CompletableFuture<Integer> load : loads) {
+                restored += load.join();
+            }
+        } catch (CompletionException e) {
+            throw new IOException("Corrupt snapshot: " + file, e.getCause());
+        }
+        return restored;
+    }
+
+    private int loadChunk(ByteBuffer chunk, long elapsedNanos,
+                          ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) {
+        int restored = 0;
+        while (chunk.hasRemaining()) {
+            byte[] key = new byte[chunk.getInt()];
+            byte[] value = new byte[chunk.getInt()];
+            long ttlNanos = chunk.getLong() - elapsedNanos;
+            int frequency = chunk.get();
+            chunk.get(key);
+            chunk.get(value);
+            if (ttlNanos > 0 && putRestored(keyCodec.decode(key), valueCodec.decode(value), ttlNanos, frequency)) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /** Insert unless present, then replay the entry's frequency into the sketch. */
+    private boolean putRestored(K key, V value, long ttlNanos, int frequency) {
+        Node<K, V> node = newNode(key, value, System.nanoTime(), ttlNanos);
+        if (data.putIfAbsent(key, node) != null) {
+            return false;  // Live traffic got there first; keep its value
+        }
+        Runnable add = addTask(node);
+        afterWrite(() -> {
+            for (int i = 1; i < frequency; i++) {
+                sketch.increment(key);
+            }
+            add.run();  // Counts once more
+        });
+        return true;
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return now - node.expiresAt > 0;
+    }
+
+    private Node<K, V> newNode(K key, V value, long now, long ttlNanos) {
+        int weight = 1;
+        if (weigher != null) {
+            weight = weigher.weigh(key, value);
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight " + weight + " for key " + key);
+            }
+        }
+        return new Node<>(key, value, now, expiresAt(now, ttlNanos), weight);
+    }
+
+    /** now + ttl, capped so that "forever" TTLs can't overflow. */
+    private static long expiresAt(long now, long ttlNanos) {
+        return now + Math.min(Math.max(0, ttlNanos), Long.MAX_VALUE / 4);
+    }
+
+    // ---------- Buffers and maintenance ----------
+
+    private void afterRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[stripeIndex()];
+        if (buffer.offer(node)) {
+            tryMaintenance();  // This stripe is filling up: drain it
+        }
+    }
+
+    /**
+     * Batch version of afterRead(). If the lock is free, apply every access
+     * directly - a 16-slot read buffer would drop most of a large batch.
+     * Otherwise fall back to the (lossy) buffers like single reads do.
+     */
+    private void afterReads(List<Node<K, V>> nodes) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        if (evictionLock.tryLock()) {
+            try {
+                for (Node<K, V> node : nodes) {
+                    onAccess(node);
+                }
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            return;
+        }
+        ReadBuffer<K, V> buffer = readBuffers[stripeIndex()];
+        for (Node<K, V> node : nodes) {
+            buffer.offer(node);
+        }
+    }
+
+    private void afterWrite(Runnable task) {
+        writeBuffer.add(task);
+        tryMaintenance();
+    }
+
+    private void afterWrites(List<Runnable> tasks) {
+        if (!tasks.isEmpty()) {
+            writeBuffer.addAll(tasks);
+            tryMaintenance();
+        }
+    }
+
+    /**
+     * Drain if nobody else is. The re-check after unlocking closes the
+     * window where a write is queued just after the drainer looked at the
+     * write buffer but before it released the lock.
+     */
+    private void tryMaintenance() {
+        do {
+            if (!evictionLock.tryLock()) {
+                return;  // Someone else is draining; they'll see our task
+            }
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!writeBuffer.isEmpty());
+    }
+
+    /** Must hold evictionLock. */
+    private void maintenance() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drainTo(this::onAccess);
+        }
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+        timerWheel.advance(System.nanoTime());
+        evictEntries();
+    }
+
+    private Runnable addTask(Node<K, V> node) {
+        return () -> {
+            // The node may already have been replaced or removed
+            if (data.get(node.key) == node) {
+                if (weigher != null) {
+                    sketch.ensureCapacity(data.size());
+                }
+                sketch.increment(node.key);
+                window.linkLast(node);  // New entries always start in the window
+                timerWheel.schedule(node);
+            }
+        };
+    }
+
+    private Runnable replaceTask(Node<K, V> old, Node<K, V> node) {
+        Runnable add = addTask(node);
+        return () -> {
+            unlink(old);
+            add.run();
+        };
+    }
+
+    /**
+     * A buffered read reached the policy: count it, and reorder.
+     * A second hit in probation promotes the entry to the protected
+     * segment; protected overflow is demoted back to probation.
+     */
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == null) {
+            return;  // Removed since the read was recorded
+        }
+        sketch.increment(node.key);
+        if (node.queue == probation) {
+            probation.unlink(node);
+            protectedQueue.linkLast(node);
+            while (protectedQueue.weight() > protectedMax) {
+                Node<K, V> demoted = protectedQueue.first();
+                protectedQueue.unlink(demoted);
+                probation.linkLast(demoted);
+            }
+        } else {
+            node.queue.moveToTail(node);
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.queue != null) {
+            node.queue.unlink(node);
+        }
+        timerWheel.deschedule(node);
+    }
+
+    /** Called by the timer wheel for a node whose deadline has passed. */
+    private void expire(Node<K, V> node) {
+        unlink(node);
+        if (data.remove(node.key, node)) {
+            notifyRemoval(node, RemovalCause.EXPIRED);
+        }
+    }
+
+    /**
+     * Entries leaving the window are CANDIDATES for the main region. If
+     * the main region is full, the candidate must beat the victim(s) it
+     * would displace on estimated frequency - otherwise the candidate is
+     * evicted. A one-off scan therefore can't push out the hot set.
+     *
+     * With weights, a heavy candidate may need several victims' room. It
+     * must beat ALL of them; nothing is evicted until that is decided.
+     */
+    private void evictEntries() {
+        while (window.weight() > windowMax) {
+            Node<K, V> candidate = window.first();
+            window.unlink(candidate);
+            if (candidate.weight > mainMax) {
+                evict(candidate);  // Could never fit
+                continue;
+            }
+            long excess = probation.weight() + protectedQueue.weight() + candidate.weight - mainMax;
+            if (excess <= 0) {
+                probation.linkLast(candidate);
+                continue;
+            }
+            if (beatsVictims(candidate, excess)) {
+                while (probation.weight() + protectedQueue.weight() + candidate.weight > mainMax) {
+                    evict(probation.first() != null ? probation.first() : protectedQueue.first());
+                }
+                probation.linkLast(candidate);
+            } else {
+                evict(candidate);  // Ties go to the incumbents
+            }
+        }
+    }
+
+    /** Would candidate out-score every victim needed to free excess weight? */
+    private boolean beatsVictims(Node<K, V> candidate, long excess) {
+        int candidateFrequency = sketch.frequency(candidate.key);
+        Node<K, V> victim = probation.first() != null ? probation.first() : protectedQueue.first();
+        while (excess > 0 && victim != null) {
+            if (candidateFrequency <= sketch.frequency(victim.key)) {
+                return false;
+            }
+            excess -= victim.weight;
+            victim = victim.next != null ? victim.next
+                : victim.queue == probation ? protectedQueue.first() : null;
+        }
+        return true;
+    }
+
+    private void evict(Node<K, V> node) {
+        unlink(node);
+        if (data.remove(node.key, node)) {
+            notifyRemoval(node, RemovalCause.SIZE);
+        }
+    }
+
+    /** Every successful removal from data ends up here, exactly once. */
+    private void notifyRemoval(Node<K, V> node, RemovalCause cause) {
+        if (cause != RemovalCause.REPLACED) {
+            stats.recordEviction(cause);
+        }
+        if (removalListener != null) {
+            removalListener.onRemoval(node.key, node.value, cause);
+        }
+    }
+
+    private int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        return (int) (id * 0x9E3779B97F4A7C15L >>> 40) & (readBuffers.length - 1);
+    }
+
+    private static int ceilingPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static final class ComputeOutcome<K, V> {
+        Node<K, V> replaced;
+        Node<K, V> created;
+    }
+
+    enum RemovalCause { EXPLICIT, REPLACED, SIZE, EXPIRED }
+
+    /**
+     * Where the cache reports what happened. The cache always calls it;
+     * when stats are off it is DISABLED, whose methods are empty. The calls
+     * are still interface calls on the hot path: they only disappear when
+     * the JIT can inline them, i.e. while each call site has seen a single
+     * implementation. A process that also runs a cache with recordStats()
+     * makes those sites bimorphic - a type check plus the inlined body.
+     */
+    interface StatsCounter {
+        void recordHits(int count);
+        void recordMisses(int count);
+        void recordLoadSuccess(long loadNanos);
+        void recordLoadFailure(long loadNanos);
+        void recordEviction(RemovalCause cause);
+        CacheStats snapshot();
+
+        StatsCounter DISABLED = new StatsCounter() {
+            @Override public void recordHits(int count) { }
+            @Override public void recordMisses(int count) { }
+            @Override public void recordLoadSuccess(long loadNanos) { }
+            @Override public void recordLoadFailure(long loadNanos) { }
+            @Override public void recordEviction(RemovalCause cause) { }
+            @Override public CacheStats snapshot() { return new CacheStats(0, 0, 0, 0, 0, new long[RemovalCause.values().length]); }
+        };
+    }
+
+    /**
+     * LongAdder counters: each thread bumps its own cell, so recording a hit
+     * never contends, even when every core reads the same hot key.
+     */
+    static final class ConcurrentStatsCounter implements StatsCounter {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder loadSuccesses = new LongAdder();
+        private final LongAdder loadFailures = new LongAdder();
+        private final LongAdder totalLoadTime = new LongAdder();
+        private final LongAdder[] evictions = new LongAdder[RemovalCause.values().length];
+
+        ConcurrentStatsCounter() {
+            for (int i = 0; i < evictions.length; i++) {
+                evictions[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public void recordHits(int count) {
+            hits.add(count);
+        }
+
+        @Override
+        public void recordMisses(int count) {
+            misses.add(count);
+        }
+
+        @Override
+        public void recordLoadSuccess(long loadNanos) {
+            loadSuccesses.increment();
+            totalLoadTime.add(loadNanos);
+        }
+
+        @Override
+        public void recordLoadFailure(long loadNanos) {
+            loadFailures.increment();
+            totalLoadTime.add(loadNanos);
+        }
+
+        @Override
+        public void recordEviction(RemovalCause cause) {
+            evictions[cause.ordinal()].increment();
+        }
+
+        @Override
+        public CacheStats snapshot() {
+            long[] byCause = new long[evictions.length];
+            for (int i = 0; i < byCause.length; i++) {
+                byCause[i] = evictions[i].sum();
+            }
+            return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.sum(),
+                loadFailures.sum(), totalLoadTime.sum(), byCause);
+        }
+    }
+
+    /** Immutable counters plus the rates derived from them. */
+    static final class CacheStats {
+        final long hitCount;
+        final long missCount;
+        final long loadSuccessCount;
+        final long loadFailureCount;
+        final long totalLoadTimeNanos;
+        private final long[] evictionsByCause;
+
+        CacheStats(long hitCount, long missCount, long loadSuccessCount,
+                   long loadFailureCount, long totalLoadTimeNanos, long[] evictionsByCause) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.loadSuccessCount = loadSuccessCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadTimeNanos = totalLoadTimeNanos;
+            this.evictionsByCause = evictionsByCause;
+        }
+
+        long requestCount() {
+            return hitCount + missCount;
+        }
+
+        double hitRate() {
+            long requests = requestCount();
+            return requests == 0 ? 1.0 : (double) hitCount / requests;
+        }
+
+        double missRate() {
+            long requests = requestCount();
+            return requests == 0 ? 0.0 : (double) missCount / requests;
+        }
+
+        double loadFailureRate() {
+            long loads = loadSuccessCount + loadFailureCount;
+            return loads == 0 ? 0.0 : (double) loadFailureCount / loads;
+        }
+
+        double averageLoadPenaltyNanos() {
+            long loads = loadSuccessCount + loadFailureCount;
+            return loads == 0 ? 0.0 : (double) totalLoadTimeNanos / loads;
+        }
+
+        long evictionCount(RemovalCause cause) {
+            return evictionsByCause[cause.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRate=%.1f%% loads=%d loadFailures=%d avgLoad=%.2fms"
+                    + " evicted(size=%d expired=%d explicit=%d)",
+                hitCount, missCount, hitRate() * 100, loadSuccessCount, loadFailureCount,
+                averageLoadPenaltyNanos() / 1e6, evictionCount(RemovalCause.SIZE),
+                evictionCount(RemovalCause.EXPIRED), evictionCount(RemovalCause.EXPLICIT));
+        }
+    }
+
+    /**
+     * A small bounded ring buffer of "this node was read" events.
+     *
+     * Many readers offer with a CAS on writeCount; the single drainer (under
+     * evictionLock) consumes. When the buffer is full, the event is simply
+     * DROPPED - losing a few LRU touches on a hot entry is harmless, and it
+     * means a reader never waits.
+     */
+    static final class ReadBuffer<K, V> {
+        static final int SIZE = 16;
+        private static final int MASK = SIZE - 1;
+
+        private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(SIZE);
+        private final AtomicLong writeCount = new AtomicLong();
+        private volatile long readCount;
+
+        /** Returns true when the buffer is full and the caller should drain it. */
+        boolean offer(Node<K, V> node) {
+            long head = readCount;
+            long tail = writeCount.get();
+            long used = tail - head;
+            if (used >= SIZE) {
+                return true;  // Full: drop the event
+            }
+            if (writeCount.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & MASK), node);
+            }
+            return used >= SIZE - 1;
+        }
+
+        void drainTo(java.util.function.Consumer<Node<K, V>> consumer) {
+            long head = readCount;
+            long tail = writeCount.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & MASK);
+                Node<K, V> node = slots.get(index);
+                if (node == null) {
+                    break;  // Slot claimed but not yet written; next drain gets it
+                }
+                slots.lazySet(index, null);
+                consumer.accept(node);
+            }
+            readCount = head;
+        }
+    }
+
+    /**
+     * A hierarchical timing wheel: buckets of nodes grouped by deadline.
+     *
+     *   level 0: 64 buckets x ~1.07 s   (covers ~1.1 minutes)
+     *   level 1: 64 buckets x ~1.14 min (covers ~1.2 hours)
+     *   level 2: 32 buckets x ~1.22 h   (covers ~1.6 days)
+     *   level 3:  4 buckets x ~1.63 d   (covers ~6.5 days)
+     *   level 4:  1 bucket for everything further out
+     *
+     * Like a clock's second/minute/hour hands: a node is filed in the
+     * coarsest level that still fits its remaining time. When that bucket's
+     * time comes, the node is either expired or re-filed into a finer level.
+     * schedule/deschedule are O(1); each node is touched at most once per
+     * level, so expiration costs amortized O(1) per entry. Bucket sizes are
+     * powers of two so that "which bucket?" is a shift and a mask.
+     *
+     * Not thread-safe: only used under evictionLock.
+     */
+    static final class TimerWheel<K, V> {
+        private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+        private static final long[] SPANS = {
+            ceilingPowerOfTwo(TimeUnit.SECONDS.toNanos(1)),  // 2^30 ns
+            ceilingPowerOfTwo(TimeUnit.MINUTES.toNanos(1)),  // 2^36 ns
+            ceilingPowerOfTwo(TimeUnit.HOURS.toNanos(1)),    // 2^42 ns
+            ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),     // 2^47 ns
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+            BUCKETS[3] * ceilingPowerOfTwo(TimeUnit.DAYS.toNanos(1)),
+        };
+        private static final long[] SHIFT = new long[BUCKETS.length];
+
+        static {
+            for (int i = 0; i < SHIFT.length; i++) {
+                SHIFT[i] = Long.numberOfTrailingZeros(SPANS[i]);
+            }
+        }
+
+        private final Node<K, V>[][] wheel;
+        private final long origin;  // Times below are relative to this nanoTime()
+        private final java.util.function.Consumer<Node<K, V>> onExpired;
+        private long nanos;         // Time of the last advance()
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        TimerWheel(long origin, java.util.function.Consumer<Node<K, V>> onExpired) {
+            this.origin = origin;
+            this.onExpired = onExpired;
+            this.wheel = new Node[BUCKETS.length][];
+            for (int i = 0; i < wheel.length; i++) {
+                wheel[i] = new Node[BUCKETS[i]];
+                for (int j = 0; j < wheel[i].length; j++) {
+                    Node<K, V> sentinel = new Node<>(null, null, 0, 0, 0);
+                    sentinel.prevInWheel = sentinel;
+                    sentinel.nextInWheel = sentinel;
+                    wheel[i][j] = sentinel;
+                }
+            }
+        }
+
+        void schedule(Node<K, V> node) {
+            long time = Math.max(node.expiresAt - origin, nanos);
+            long duration = time - nanos;
+            Node<K, V> sentinel = wheel[BUCKETS.length - 1][0];
+            for (int i = 0; i < BUCKETS.length - 1; i++) {
+                if (duration < SPANS[i + 1]) {
+                    long ticks = time >>> SHIFT[i];
+                    sentinel = wheel[i][(int) (ticks & (BUCKETS[i] - 1))];
+                    break;
+                }
+            }
+            // Append to the bucket's circular list
+            node.prevInWheel = sentinel.prevInWheel;
+            node.nextInWheel = sentinel;
+            sentinel.prevInWheel.nextInWheel = node;
+            sentinel.prevInWheel = node;
+        }
+
+        void deschedule(Node<K, V> node) {
+            if (node.nextInWheel != null) {
+                node.nextInWheel.prevInWheel = node.prevInWheel;
+                node.prevInWheel.nextInWheel = node.nextInWheel;
+                node.nextInWheel = null;
+                node.prevInWheel = null;
+            }
+        }
+
+        /** Move the clock to now, expiring or re-filing every bucket passed. */
+        void advance(long now) {
+            long previous = nanos;
+            long current = now - origin;
+            if (current <= previous) {
+                return;
+            }
+            nanos = current;
+            for (int i = 0; i < SHIFT.length; i++) {
+                long previousTicks = previous >>> SHIFT[i];
+                long delta = (current >>> SHIFT[i]) - previousTicks;
+                if (delta <= 0) {
+                    break;  // Coarser levels can't have moved either
+                }
+                expire(i, previousTicks, delta);
+            }
+        }
+
+        private void expire(int level, long previousTicks, long delta) {
+            Node<K, V>[] buckets = wheel[level];
+            int mask = buckets.length - 1;
+            int steps = (int) Math.min(1 + delta, buckets.length);
+            int start = (int) (previousTicks & mask);
+            for (int i = start; i < start + steps; i++) {
+                Node<K, V> sentinel = buckets[i & mask];
+                Node<K, V> node = sentinel.nextInWheel;
+                sentinel.prevInWheel = sentinel;
+                sentinel.nextInWheel = sentinel;
+                while (node != sentinel) {
+                    Node<K, V> next = node.nextInWheel;
+                    node.prevInWheel = null;
+                    node.nextInWheel = null;
+                    if (node.expiresAt - origin <= nanos) {
+                        onExpired.accept(node);
+                    } else {
+                        schedule(node);  // Not yet: cascade to a finer level
+                    }
+                    node = next;
+                }
+            }
+        }
+
+        private static long ceilingPowerOfTwo(long n) {
+            return 1L << (64 - Long.numberOfLeadingZeros(n - 1));
+        }
+    }
+
+    /**
+     * Intrusive doubly-linked list in access order: first() is the least
+     * recently used node. Each node is in at most one deque at a time. Not thread-safe - guarded by evictionLock.
+     */
+    static final class AccessOrderDeque<K, V> {
+        private Node<K, V> head;
+        private Node<K, V> tail;
+        private long weight;  // Sum of the nodes' weights
+
+        long weight() {
+            return weight;
+        }
+
+        Node<K, V> first() {
+            return head;
+        }
+
+        void linkLast(Node<K, V> node) {
+            if (node.queue != null) {
+                return;
+            }
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            node.queue = this;
+            weight += node.weight;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.queue != this) {
+                return;
+            }
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            weight -= node.weight;
+        }
+
+        /** Ignores nodes that were already removed (stale read events). */
+        void moveToTail(Node<K, V> node) {
+            if (node.queue == this && node != tail) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+    }
+}
+
+/**
+ * A count-min sketch of 4-bit counters: a compact, approximate answer to
+ * "how often has this key been seen recently?".
+ *
+ * Each key maps to 4 counters (one per hash function); the estimate is
+ * the minimum of the 4, which limits over-counting from collisions.
+ * Counters saturate at 15. After 10 * maximumSize increments, every
+ * counter is halved ("aging"), so old popularity fades away.
+ *
+ * Not thread-safe: only used under the cache's evictionLock.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;  // Clears each counter's top bit after >>> 1
+
+    private long[] table;  // 16 counters of 4 bits per long
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * Grow to suit maximumSize entries. Growing starts the counts over,
+     * which only costs a little accuracy while the cache warms up.
+     */
+    void ensureCapacity(int maximumSize) {
+        int size = Math.max(16, Integer.highestOneBit(Math.max(1, maximumSize) - 1) << 1);
+        if (table != null && table.length >= size) {
+            return;
+        }
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * Math.max(1, maximumSize);
+        this.additions = 0;
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            long h = mix(hash, i);
+            int index = (int) (h >>> 4) & tableMask;
+            int shift = (int) (h & 15) << 2;
+            min = Math.min(min, (int) ((table[index] >>> shift) & 15));
+        }
+        return min;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long h = mix(hash, i);
+            int index = (int) (h >>> 4) & tableMask;
+            int shift = (int) (h & 15) << 2;
+            if (((table[index] >>> shift) & 15) != 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /** Halve every counter so the sketch adapts to changing popularity. */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static long mix(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h ^ (h >>> 29);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
+
+/**
+ * Weigher that estimates the retained heap size of an entry, in bytes.
+ *
+ * Sizes assume a 64-bit JVM with compressed oops (12-byte headers, 8-byte
+ * alignment). Strings are counted as UTF-16 and unknown objects as their
+ * header alone, so the estimate errs high for text and low for deep
+ * object graphs - pass a custom Weigher for those.
+ */
+class HeapWeigher implements ConcurrentCache.Weigher<Object, Object> {
+    /** Cache Node (~64 bytes) + ConcurrentHashMap entry (~32 bytes). */
+    static final int ENTRY_OVERHEAD = 96;
+
+    @Override
+    public int weigh(Object key, Object value) {
+        long bytes = ENTRY_OVERHEAD + estimate(key) + estimate(value);
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    static long estimate(Object o) {
+        if (o == null) {
+            return 0;
+        }
+        if (o instanceof String) {
+            return 24 + array(((String) o).length(), 2);  // String + its array
+        }
+        if (o instanceof byte[]) {
+            return array(((byte[]) o).length, 1);
+        }
+        if (o instanceof char[]) {
+            return array(((char[]) o).length, 2);
+        }
+        if (o instanceof int[]) {
+            return array(((int[]) o).length, 4);
+        }
+        if (o instanceof long[]) {
+            return array(((long[]) o).length, 8);
+        }
+        if (o instanceof double[]) {
+            return array(((double[]) o).length, 8);
+        }
+        if (o instanceof Object[]) {
+            long bytes = array(((Object[]) o).length, 4);
+            for (Object element : (Object[]) o) {
+                bytes += estimate(element);
+            }
+            return bytes;
+        }
+        if (o instanceof Long || o instanceof Double) {
+            return 24;
+        }
+        return 16;  // Boxed Integer etc., or just the header of anything else
+    }
+
+    private static long array(long length, int elementBytes) {
+        return align(16 + length * elementBytes);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
+
+/** Turns values into bytes for off-heap storage and back. */
+interface ValueCodec<V> {
+    byte[] encode(V value);
+
+    V decode(byte[] bytes);
+}
+
+/**
+ * ConcurrentCache in off-heap mode: the VALUES live in direct memory.
+ *
+ * The on-heap part is an ordinary ConcurrentCache<K, OffHeapRef> - keys
+ * plus a ~40-byte reference (slot address, length, generations) per entry.
+ * It still does all the policy work (W-TinyLFU, expiry, weights in slot
+ * bytes), and its removal listener hands freed slots back to the slab
+ * allocator (after passing the decoded value to the caller's listener).
+ * A multi-GB cache therefore adds almost nothing for the GC to trace or
+ * copy.
+ *
+ * The cost: every get() copies and decodes the value, and every put()
+ * encodes it. This pays off for large, mostly-read values.
+ */
+class OffHeapCache<K, V> {
+    private final SlabAllocator allocator;
+    private final ValueCodec<V> codec;
+    private final ConcurrentCache<K, OffHeapRef> index;
+
+    /**
+     * @param builder a copy owned by this cache - its weigher and removal
+     *                listener are replaced with the slot-based ones
+     * @param listener the caller's removal listener, or null
+     */
+    OffHeapCache(ConcurrentCache.Builder builder, long budget, ValueCodec<V> codec,
+                 ConcurrentCache.RemovalListener<Object, V> listener) {
+        this.codec = Objects.requireNonNull(codec);
+        // Headroom for slab classes that fill unevenly, and for puts that
+        // land before maintenance evicts for them
+        this.allocator = new SlabAllocator(budget + budget / 4);
+        ConcurrentCache.Weigher<Object, OffHeapRef> slotBytes = (key, ref) -> ref.slotSize;
+        ConcurrentCache.RemovalListener<Object, OffHeapRef> freeSlot = (key, ref, cause) -> {
+            try {
+                if (listener != null) {
+                    byte[] bytes = allocator.read(ref);
+                    listener.onRemoval(key, bytes == null ? null : codec.decode(bytes), cause);
+                }
+            } finally {
+                allocator.free(ref);
+            }
+        };
+        this.index = builder.weigher(slotBytes).removalListener(freeSlot).build();
+    }
+
+    public V get(K key) {
+        OffHeapRef ref = index.get(key);
+        if (ref == null) {
+            return null;
+        }
+        byte[] bytes = allocator.read(ref);
+        // null: the entry was removed and its slot reused while we copied
+        return bytes == null ? null : codec.decode(bytes);
+    }
+
+    /**
+     * If the value's size class has no free slot and no slab is left to
+     * give it, evict through the index - in policy order, like a weight
+     * overflow would - until a slot or a whole slab comes free. False only
+     * if the value can never fit.
+     */
+    public boolean put(K key, V value) {
+        byte[] bytes = codec.encode(value);
+        OffHeapRef ref;
+        while ((ref = allocator.write(bytes)) == null) {
+            if (!allocator.fits(bytes.length) || !index.evictOne()) {
+                return false;
+            }
+        }
+        index.put(key, ref);
+        return true;
+    }
+
+    public boolean remove(K key) {
+        return index.remove(key) != null;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** Bytes of slots held by live entries. */
+    public long weightedSize() {
+        return index.weightedSize();
+    }
+
+    /** Direct memory reserved from the OS so far. */
+    public long reservedBytes() {
+        return allocator.reservedBytes();
+    }
+}
+
+/** Where an off-heap value lives. Immutable; a stale one is detected on read. */
+final class OffHeapRef {
+    final long address;     // slab index << 32 | offset within the slab
+    final int length;       // Encoded value length
+    final int slotSize;     // Size class of the slot, for weight and free()
+    final int generation;   // Slot generation when this value was written
+    final int slabEpoch;    // Slab epoch then: bumped when the slab changes class
+
+    OffHeapRef(long address, int length, int slotSize, int generation, int slabEpoch) {
+        this.address = address;
+        this.length = length;
+        this.slotSize = slotSize;
+        this.generation = generation;
+        this.slabEpoch = slabEpoch;
+    }
+}
+
+/**
+ * Slab allocator over direct ByteBuffers.
+ *
+ * Memory is reserved in 1 MB slabs. Each slab is carved into equal slots
+ * of one SIZE CLASS (64 B, 128 B, ... 1 MB), and freed slots go onto that
+ * class's free stack for reuse - no fragmentation, no compaction, no
+ * per-value malloc.
+ *
+ * A slab whose last live slot is freed goes back to a shared pool, and
+ * any class can take it from there. Without that, the first workload
+ * would own every slab for good: after a shift from small values to
+ * large ones, the large class would find nothing left.
+ *
+ * Each slot starts with [generation:int][length:int]. A reader checks the
+ * generation before and after copying (a seqlock): if the slot was freed -
+ * and maybe reused - in between, the copy is thrown away. A slab that
+ * changes class is re-carved, so an old offset may now point into the
+ * middle of a slot; the slab's epoch is checked around the copy as well.
+ * That makes reads lock-free without reference counting.
+ */
+class SlabAllocator {
+    static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_SLOT_SHIFT = 6;   // 64-byte slots
+    private static final int HEADER = 8;
+    private static final VarHandle INT =
+        MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer[] slabs;
+    private final AtomicIntegerArray epochs;
+    private final int[] liveSlots;  // Per slab; guarded by the lock of the class that owns it
+    private final SizeClass[] classes;
+    private final ReentrantLock slabLock = new ReentrantLock();
+    private int slabCount;          // Guarded by slabLock
+    private final int[] freeSlabs;  // Guarded by slabLock
+    private int freeSlabCount;      // Guarded by slabLock
+
+    /** One size class: a free stack plus the slab currently being carved. */
+    private static final class SizeClass {
+        final int slotSize;
+        final ReentrantLock lock = new ReentrantLock();
+        long[] free = new long[16];
+        int freeCount;
+        int carveSlab = -1;
+        int carveOffset = SLAB_SIZE;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+    }
+
+    SlabAllocator(long maxBytes) {
+        this.slabs = new ByteBuffer[(int) Math.max(1, maxBytes / SLAB_SIZE)];
+        this.epochs = new AtomicIntegerArray(slabs.length);
+        this.liveSlots = new int[slabs.length];
+        this.freeSlabs = new int[slabs.length];
+        this.classes = new SizeClass[Integer.numberOfTrailingZeros(SLAB_SIZE) - MIN_SLOT_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_SLOT_SHIFT + i));
+        }
+    }
+
+    /** Whether a value of this length fits in a slot at all. */
+    boolean fits(int length) {
+        return HEADER + length <= SLAB_SIZE;
+    }
+
+    /** Copy bytes into a fresh slot, or null if no slot can be had. */
+    OffHeapRef write(byte[] bytes) {
+        if (!fits(bytes.length)) {
+            return null;
+        }
+        int needed = HEADER + bytes.length;
+        int classIndex = Math.max(0, 32 - Integer.numberOfLeadingZeros(needed - 1) - MIN_SLOT_SHIFT);
+        SizeClass sizeClass = classes[classIndex];
+        long address = allocate(sizeClass);
+        if (address < 0) {
+            return null;
+        }
+        int slabIndex = (int) (address >>> 32);
+        ByteBuffer slab = slabs[slabIndex];
+        int offset = (int) address;
+        ByteBuffer target = slab.duplicate();
+        target.position(offset + HEADER);
+        target.put(bytes);
+        slab.putInt(offset + 4, bytes.length);
+        // Publishing the new generation releases the bytes written above
+        int generation = (int) INT.getVolatile(slab, offset) + 1;
+        INT.setVolatile(slab, offset, generation);
+        return new OffHeapRef(address, bytes.length, sizeClass.slotSize, generation, epochs.get(slabIndex));
+    }
+
+    /** The value's bytes, or null if the slot no longer holds this value. */
+    byte[] read(OffHeapRef ref) {
+        int slabIndex = (int) (ref.address >>> 32);
+        ByteBuffer slab = slabs[slabIndex];
+        int offset = (int) ref.address;
+        if (epochs.get(slabIndex) != ref.slabEpoch || (int) INT.getVolatile(slab, offset) != ref.generation) {
+            return null;
+        }
+        byte[] bytes = new byte[ref.length];
+        ByteBuffer source = slab.duplicate();
+        source.position(offset + HEADER);
+        source.get(bytes);
+        VarHandle.acquireFence();  // Finish the copy before re-checking
+        return (int) INT.getVolatile(slab, offset) == ref.generation
+            && epochs.get(slabIndex) == ref.slabEpoch ? bytes : null;
+    }
+
+    void free(OffHeapRef ref) {
+        int slabIndex = (int) (ref.address >>> 32);
+        ByteBuffer slab = slabs[slabIndex];
+        int offset = (int) ref.address;
+        // Bump the generation first: any reader still copying will notice
+        if (epochs.get(slabIndex) != ref.slabEpoch
+                || !INT.compareAndSet(slab, offset, ref.generation, ref.generation + 1)) {
+            return;  // Already freed
+        }
+        SizeClass sizeClass = classes[Integer.numberOfTrailingZeros(ref.slotSize) - MIN_SLOT_SHIFT];
+        sizeClass.lock.lock();
+        try {
+            if (--liveSlots[slabIndex] == 0) {
+                releaseSlab(sizeClass, slabIndex);
+                return;
+            }
+            if (sizeClass.freeCount == sizeClass.free.length) {
+                sizeClass.free = Arrays.copyOf(sizeClass.free, sizeClass.free.length * 2);
+            }
+            sizeClass.free[sizeClass.freeCount++] = ref.address;
+        } finally {
+            sizeClass.lock.unlock();
+        }
+    }
+
+    /**
+     * The slab's last live slot was just freed: take its slots off the
+     * class's free stack and hand it to the shared pool. Holding the
+     * class lock.
+     */
+    private void releaseSlab(SizeClass sizeClass, int slabIndex) {
+        int kept = 0;
+        for (int i = 0; i < sizeClass.freeCount; i++) {
+            if ((int) (sizeClass.free[i] >>> 32) != slabIndex) {
+                sizeClass.free[kept++] = sizeClass.free[i];
+            }
+        }
+        sizeClass.freeCount = kept;
+        if (sizeClass.carveSlab == slabIndex) {
+            sizeClass.carveSlab = -1;
+            sizeClass.carveOffset = SLAB_SIZE;
+        }
+        epochs.incrementAndGet(slabIndex);  // Before anyone can re-carve it
+        slabLock.lock();
+        try {
+            freeSlabs[freeSlabCount++] = slabIndex;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    long reservedBytes() {
+        slabLock.lock();
+        try {
+            return (long) slabCount * SLAB_SIZE;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    private long allocate(SizeClass sizeClass) {
+        sizeClass.lock.lock();
+        try {
+            if (sizeClass.freeCount > 0) {
+                long address = sizeClass.free[--sizeClass.freeCount];  // Reuse first
+                liveSlots[(int) (address >>> 32)]++;
+                return address;
+            }
+            if (sizeClass.carveOffset + sizeClass.slotSize > SLAB_SIZE) {
+                int slab = takeSlab();
+                if (slab < 0) {
+                    return -1;
+                }
+                sizeClass.carveSlab = slab;
+                sizeClass.carveOffset = 0;
+            }
+            long address = ((long) sizeClass.carveSlab << 32) | sizeClass.carveOffset;
+            sizeClass.carveOffset += sizeClass.slotSize;
+            liveSlots[sizeClass.carveSlab]++;
+            return address;
+        } finally {
+            sizeClass.lock.unlock();
+        }
+    }
+
+    /** A slab from the pool, else a newly reserved one; -1 if the budget is spent. */
+    private int takeSlab() {
+        slabLock.lock();
+        try {
+            if (freeSlabCount > 0) {
+                return freeSlabs[--freeSlabCount];
+            }
+            if (slabCount == slabs.length) {
+                return -1;
+            }
+            slabs[slabCount] = ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder());
+            return slabCount++;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+}
+
+/**
+ * The original design, kept as a baseline for the scaling benchmark:
+ * an access-ordered LinkedHashMap behind a ReentrantReadWriteLock. Because
+ * get() reorders the map, it has to take the WRITE lock to be correct.
+ */
+class RwLockLruCache<K, V> {
+    private final Map<K, V> map;
+    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+
+    RwLockLruCache(int maxSize) {
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    V get(K key) {
+        rwLock.writeLock().lock();
+        try {
+            return map.get(key);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    void put(K key, V value) {
+        rwLock.writeLock().lock();
+        try {
+            map.put(key, value);
+        } finally {
+            rwLock.writeLock().unlock();
         }
     }
 }
 
 /*
  * KEY INSIGHTS:
- * 
- * 1. LinkedHashMap WITH ACCESS ORDER:
- *    Using `accessOrder=true` makes it maintain LRU order.
- *    The oldest-accessed entry is first in iteration order.
- * 
- * 2. READ-WRITE LOCK PATTERN:
- *    - get() uses read lock (concurrent reads OK)
- *    - put(), remove() use write lock (exclusive)
- * 
- * 3. LOCK UPGRADE/DOWNGRADE:
- *    Cannot upgrade read to write directly. Must release read first.
- *    In get(), we release read, acquire write to remove expired entry.
- * 
- * 4. DOUBLE-CHECKED LOCKING:
- *    In computeIfAbsent(), we check under read lock first, then
- *    re-check under write lock to handle races.
- * 
- * 5. TOUCH ON ACCESS:
- *    Updating accessedAt maintains LRU order for eviction.
+ *
+ * 1. SEPARATE DATA FROM POLICY:
+ *    The ConcurrentHashMap answers "what is the value?" without any global
+ *    lock. The LRU list answers "what do we evict?" and is only touched by
+ *    one thread at a time, in batches.
+ *
+ * 2. LOSSY READ BUFFERS:
+ *    Recording an access must be cheaper than the read itself. A full
+ *    buffer drops the event instead of blocking - LRU order only needs to
+ *    be approximately right. Striping by thread keeps CAS contention low.
+ *
+ * 3. LOSSLESS WRITE BUFFER:
+ *    Adds and removals MUST reach the LRU list, or size accounting breaks.
+ *    They go through an unbounded ConcurrentLinkedQueue instead.
+ *
+ * 4. tryLock() FOR MAINTENANCE:
+ *    Whoever notices work to do tries to become the drainer. If the lock is
+ *    taken, another thread is already draining, so we just return.
+ *
+ * 5. IMMUTABLE NODES:
+ *    put() replaces the node instead of mutating it, so a reader always
+ *    sees a consistent (value, expiresAt) pair without locking.
+ *
+ * 6. WHY THE OLD get() WAS BROKEN:
+ *    An access-ordered LinkedHashMap moves the entry on get(). Doing that
+ *    under a shared READ lock lets two readers relink the list at once.
+ *
+ * 7. RECENCY vs FREQUENCY (W-TinyLFU):
+ *    LRU only knows "recently used", so a scan of cold keys evicts the hot
+ *    set. The admission filter asks "is the newcomer more popular than
+ *    what it would replace?" using a 4-bit count-min sketch (~8 bytes per
+ *    entry). The small window still lets brand-new bursts get a foothold,
+ *    and periodic halving of the counters lets old favourites age out.
+ *
+ * 8. ASYNC LOADING WITHOUT LOCKS:
+ *    getAsync() publishes a future in a side map with putIfAbsent(), then
+ *    runs the loader on an executor. Later callers find the future and
+ *    wait on IT - not on a lock - so one slow load delays only the callers
+ *    that actually need that key. The value is cached before the future
+ *    leaves the map, so there is no window where a caller sees neither.
+ *
+ * 9. REFRESH BEFORE EXPIRY:
+ *    Expiry turns a hot key into a miss, and every caller at that moment
+ *    waits for the backend. With refreshAfterWrite, an old-but-valid entry
+ *    is served as-is while one background reload replaces it. The reload
+ *    swaps its node in with replace(key, old, new), so it never clobbers a
+ *    put() that happened while it was loading.
+ *
+ * 10. WEIGHT, NOT COUNT:
+ *    When values range from bytes to megabytes, "1000 entries" says
+ *    nothing about memory. Each node records its weight once, every deque
+ *    keeps a running total, and eviction compares totals to the budget -
+ *    a replace() is just "subtract the old node, add the new one". A heavy
+ *    newcomer has to out-score EVERY victim it would displace.
+ *
+ * 11. STATS THAT COST LITTLE WHEN OFF:
+ *    The cache always calls a StatsCounter; "off" is a do-nothing
+ *    implementation, not an if-statement. That is only free once the JIT
+ *    inlines it: with one implementation seen at a call site (monomorphic)
+ *    the call vanishes; interpreted code, or a site that has seen both
+ *    implementations, still pays a call or a type check. "On" uses
+ *    LongAdder, so threads recording hits on the same key don't fight
+ *    over one counter.
+ *
+ * 12. OFF-HEAP VALUES:
+ *    The GC's work grows with live heap, and a big cache is mostly live
+ *    heap. Moving the value bytes to direct memory leaves the collector
+ *    just the keys and small references. Power-of-two size classes waste
+ *    up to half a slot per value (fewer entries fit the same budget) but
+ *    make free() a push onto a stack. Readers never take a lock: a slot
+ *    generation, checked before and after the copy, catches reuse.
+ *
+ * 13. WARM RESTARTS:
+ *    An empty cache after a deploy sends its whole miss storm to the
+ *    backend. A snapshot keeps the valuable part of the cache - which
+ *    keys, and how popular they were - so the new process starts near its
+ *    steady-state hit rate. Memory-mapping the chunks lets the OS page
+ *    the file in while several threads decode it.
+ *
+ * 14. BATCH THE FIXED COSTS:
+ *    A lookup of N keys one at a time pays N lock acquisitions, N buffer
+ *    drains and - worse - N loader round trips. getAll() resolves hits in
+ *    one pass, makes ONE loader call for all the misses and hands the
+ *    policy a whole batch under one lock. The per-key cost falls until the
+ *    work that really is per key dominates.
+ *
+ * 15. TIMER WHEEL EXPIRATION:
+ *    A full scan costs O(cache size) even when nothing has expired. The
+ *    wheel only visits buckets whose time has passed, and an entry moves
+ *    through at most one bucket per level - amortized O(1). The price is
+ *    precision: an entry may outlive its deadline by up to one tick
+ *    (~1 second), which is why get() still checks expiresAt itself.
  */
@@ -5,6 +5,10 @@
  * 1. Callable for returning values
  * 2. Future for async results
  * 3. invokeAll and invokeAny
+ *
+ * Run with "virtual" to use a virtual-thread-per-task executor (Java 21+)
+ * instead of fixed platform pools. Futures, timeouts, cancel(true),
+ * invokeAll and invokeAny behave exactly the same.
  */
 
 import java.util.concurrent.*;
@@ -12,8 +16,12 @@ import java.util.*;
 
 public class Example03_CallableAndFuture {
 
+    private static boolean virtualMode;
+
     public static void main(String[] args) throws Exception {
         System.out.println("=== Callable and Future Demo ===\n");
+        virtualMode = args.length > 0 && args[0].equals("virtual");
+        System.out.println("Mode: " + (virtualMode ? "virtual threads" : "platform threads") + "\n");
 
         futureBasicsDemo();
         invokeAllDemo();
@@ -23,7 +31,7 @@ public class Example03_CallableAndFuture {
     private static void futureBasicsDemo() throws Exception {
         System.out.println("--- Future Basics ---\n");
 
-        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ExecutorService executor = newExecutor(2);
 
         // Submit Callable that returns a value
         Callable<Integer> task = () -> {
@@ -64,7 +72,7 @@ public class Example03_CallableAndFuture {
     private static void invokeAllDemo() throws Exception {
         System.out.println("--- invokeAll Demo ---\n");
 
-        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ExecutorService executor = newExecutor(3);
 
         List<Callable<Integer>> tasks = Arrays.asList(
             () -> { Thread.sleep(1000); return 1; },
@@ -92,7 +100,7 @@ public class Example03_CallableAndFuture {
     private static void invokeAnyDemo() throws Exception {
         System.out.println("--- invokeAny Demo ---\n");
 
-        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ExecutorService executor = newExecutor(3);
 
         List<Callable<String>> tasks = Arrays.asList(
             () -> { Thread.sleep(3000); return "slow"; },
@@ -112,4 +120,27 @@ public class Example03_CallableAndFuture {
         executor.shutdown();
         System.out.println();
     }
+
+    /**
+     * Fixed pool of platform threads, or - in virtual mode - one virtual
+     * thread per task. Nothing in the tasks needs a bounded pool: they
+     * only sleep, so the platform pool size is an arbitrary limit.
+     */
+    private static ExecutorService newExecutor(int platformThreads) {
+        return virtualMode ? newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(platformThreads);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() via reflection, so this
+     * file still compiles for Java 11. Falls back to a cached pool of
+     * platform threads (also one thread per task) on older JVMs.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("(virtual threads need Java 21+: using a cached platform pool)");
+            return Executors.newCachedThreadPool();
+        }
+    }
 }
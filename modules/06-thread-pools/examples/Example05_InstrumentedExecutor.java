@@ -0,0 +1,626 @@
+/**
+ * Example 05: Instrumented ThreadPoolExecutor
+ *
+ * Example 02 watches its pool through getPoolSize(), getQueue().size() and
+ * getActiveCount(). Those are snapshots of one instant, they say nothing
+ * about how LONG tasks waited or ran, and most of them take the pool's
+ * mainLock - the same lock every worker needs to start and retire. A
+ * monitor that polls them perturbs the thing it is measuring.
+ *
+ * InstrumentedThreadPoolExecutor uses the hooks ThreadPoolExecutor
+ * provides for exactly this:
+ * - execute()/newTaskFor() stamp each task with its submit time and a TYPE
+ * - beforeExecute() records queue wait (now - submit time)
+ * - afterExecute() records run time and failures
+ * - the rejection handler is wrapped to count rejections per policy
+ * - terminated() stops the exporter
+ *
+ * Everything is recorded into lock-free counters and log-linear
+ * histograms (one atomic increment per sample), and a scheduled exporter
+ * prints a snapshot of the last interval without touching any pool lock.
+ */
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class Example05_InstrumentedExecutor {
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("=== Instrumented ThreadPoolExecutor ===\n");
+
+        typedWorkloadDemo();
+        rejectionDemo();
+        overheadBenchmark();
+    }
+
+    /**
+     * Example 02's pool (core 2, max 4, queue 2) fed a mix of fast and
+     * slow tasks, with a snapshot exported every 250 ms.
+     */
+    private static void typedWorkloadDemo() throws InterruptedException {
+        System.out.println("--- Typed Workload, Snapshot Every 250 ms ---");
+        InstrumentedThreadPoolExecutor executor = new InstrumentedThreadPoolExecutor(
+            2, 4, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(2),
+            new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        executor.startExport(250, TimeUnit.MILLISECONDS, System.out::print);
+
+        for (int i = 0; i < 60; i++) {
+            if (i % 4 == 0) {
+                executor.execute("slow", () -> sleep(40));
+            } else {
+                executor.execute("fast", () -> sleep(5));
+            }
+            if (i % 10 == 9) {
+                // A task that throws is counted as a failure, not lost
+                executor.submit("fast", () -> {
+                    throw new IllegalStateException("boom");
+                });
+            }
+            sleep(10);
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        System.out.println("Totals:");
+        System.out.print(executor.snapshot(false));
+        System.out.println();
+    }
+
+    private static void rejectionDemo() throws InterruptedException {
+        System.out.println("--- Rejections by Policy ---");
+        InstrumentedThreadPoolExecutor executor = new InstrumentedThreadPoolExecutor(
+            1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(1),
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+        for (int i = 0; i < 5; i++) {
+            try {
+                executor.execute("burst", () -> sleep(100));
+            } catch (RejectedExecutionException e) {
+                // Counted by the wrapper before it propagates
+            }
+        }
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardOldestPolicy());
+        for (int i = 0; i < 5; i++) {
+            executor.execute("burst", () -> sleep(100));
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        System.out.println("  " + executor.rejectionsByPolicy());
+        System.out.println();
+    }
+
+    /**
+     * What does the instrumentation cost? 1,000,000 empty tasks from one
+     * submitter into 2 workers, plain vs instrumented.
+     */
+    private static void overheadBenchmark() throws InterruptedException {
+        System.out.println("--- Overhead: 1,000,000 empty tasks ---");
+        int tasks = 1_000_000;
+        for (int round = 0; round < 2; round++) {  // First round warms up the JIT
+            long plain = runEmptyTasks(new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>()), tasks);
+            long instrumented = runEmptyTasks(new InstrumentedThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ThreadPoolExecutor.AbortPolicy()), tasks);
+            if (round == 1) {
+                System.out.printf("  ThreadPoolExecutor:          %,5d ns/task%n", plain / tasks);
+                System.out.printf("  InstrumentedThreadPoolExec.: %,5d ns/task%n", instrumented / tasks);
+            }
+        }
+    }
+
+    private static long runEmptyTasks(ThreadPoolExecutor executor, int tasks) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        Runnable task = done::countDown;
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(task);
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        return nanos;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * ThreadPoolExecutor that records per-type queue wait and run time,
+ * failures and rejections, using only lock-free counters.
+ *
+ * Caveat: a task run by CallerRunsPolicy never passes through
+ * beforeExecute()/afterExecute() - it is counted as a rejection only.
+ */
+class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+    static final String UNTYPED = "untyped";
+
+    private final ConcurrentHashMap<String, TypeStats> statsByType = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> rejectionsByPolicy = new ConcurrentHashMap<>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();  // Rejected and not re-executed by the handler
+    private final LongAdder removed = new LongAdder();  // Left the queue without running
+    private final BlockingQueue<Runnable> queueView;
+    private final ThreadLocal<Rejection> rejection = new ThreadLocal<>();
+
+    private ScheduledExecutorService exporter;
+    private final Map<String, long[][]> lastExported = new TreeMap<>();  // Exporter thread only
+
+    public InstrumentedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime,
+                                          TimeUnit unit, BlockingQueue<Runnable> workQueue,
+                                          RejectedExecutionHandler handler) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, handler);
+        this.queueView = new RemovalCountingQueue(workQueue, removed);
+        setRejectedExecutionHandler(handler);  // The constructor doesn't call the setter
+    }
+
+    // ==================== Submission ====================
+
+    public void execute(String type, Runnable command) {
+        execute(new StampedTask(type, command));
+    }
+
+    public <T> Future<T> submit(String type, Callable<T> task) {
+        StampedFuture<T> future = new StampedFuture<>(type, task);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * A handler that re-executes the task it was given (DiscardOldestPolicy
+     * does) lands here again with the same object: that is a retry, not a
+     * second submission.
+     */
+    @Override
+    public void execute(Runnable command) {
+        Rejection current = rejection.get();
+        if (current != null && current.task == command) {
+            current.retried = true;
+        } else {
+            submitted.increment();
+        }
+        super.execute(command instanceof Stamped ? command : new StampedTask(UNTYPED, command));
+    }
+
+    /**
+     * Handlers, remove() and purge() reach the queue through here, so
+     * every task they take out is counted. Workers use the queue directly.
+     */
+    @Override
+    public BlockingQueue<Runnable> getQueue() {
+        return queueView;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> drained = super.shutdownNow();  // Drains the real queue, not the view
+        removed.add(drained.size());
+        return drained;
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new StampedFuture<>(UNTYPED, callable);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new StampedFuture<>(UNTYPED, Executors.callable(runnable, value));
+    }
+
+    /**
+     * Counts every rejection under the policy's class name, then delegates.
+     * The task is dropped unless the handler executes it again (if that is
+     * rejected too, the nested call does the counting).
+     */
+    @Override
+    public void setRejectedExecutionHandler(RejectedExecutionHandler handler) {
+        LongAdder count = rejectionsByPolicy.computeIfAbsent(handler.getClass().getSimpleName(),
+            name -> new LongAdder());
+        super.setRejectedExecutionHandler((r, executor) -> {
+            rejected.increment();
+            count.increment();
+            Rejection outer = rejection.get();
+            Rejection current = new Rejection(r);
+            rejection.set(current);
+            try {
+                handler.rejectedExecution(r, executor);
+            } finally {
+                rejection.set(outer);
+                if (!current.retried) {
+                    dropped.increment();
+                }
+            }
+        });
+    }
+
+    // ==================== Hooks ====================
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        Stamped task = (Stamped) r;
+        long now = System.nanoTime();
+        task.markStarted(now);
+        statsFor(task.type()).queueWait.record(now - task.submittedAt());
+        started.increment();
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        Stamped task = (Stamped) r;
+        TypeStats stats = statsFor(task.type());
+        stats.runTime.record(System.nanoTime() - task.startedAt());
+        if (t != null || (r instanceof StampedFuture && ((StampedFuture<?>) r).failed)) {
+            stats.failures.increment();
+        }
+        finished.increment();
+    }
+
+    @Override
+    protected void terminated() {
+        super.terminated();
+        synchronized (this) {
+            if (exporter != null) {
+                exporter.shutdown();
+            }
+        }
+    }
+
+    private TypeStats statsFor(String type) {
+        TypeStats stats = statsByType.get(type);  // Lock-free fast path
+        return stats != null ? stats : statsByType.computeIfAbsent(type, k -> new TypeStats());
+    }
+
+    // ==================== Export ====================
+
+    /** Every period, hand the sink a snapshot of what happened since the last one. */
+    public synchronized void startExport(long period, TimeUnit unit, Consumer<String> sink) {
+        if (exporter != null) {
+            throw new IllegalStateException("Export already started");
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pool-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exporter.scheduleAtFixedRate(() -> sink.accept(snapshot(true)), period, period, unit);
+    }
+
+    /**
+     * Reads only LongAdders and histogram counters - never the pool's
+     * mainLock or the queue's lock. Queue depth is derived from the
+     * counters: submitted - dropped - started - removed.
+     */
+    public String snapshot(boolean sinceLastExport) {
+        // Read started before submitted: a task can't start before it is
+        // submitted, so a race can only make queued too high, never negative
+        long startedSoFar = started.sum();
+        long active = startedSoFar - finished.sum();
+        long queued = submitted.sum() - dropped.sum() - startedSoFar - removed.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("  pool: active %d, queued %d, done %,d, rejected %,d%n",
+            active, Math.max(0, queued), finished.sum(), rejected.sum()));
+        for (Map.Entry<String, TypeStats> entry : new TreeMap<>(statsByType).entrySet()) {
+            long[] waits = entry.getValue().queueWait.counts();
+            long[] runs = entry.getValue().runTime.counts();
+            long failures = entry.getValue().failures.sum();
+            if (sinceLastExport) {
+                long[][] previous = lastExported.put(entry.getKey(), new long[][] {waits, runs, {failures}});
+                if (previous != null) {
+                    waits = Histogram.minus(waits, previous[0]);
+                    runs = Histogram.minus(runs, previous[1]);
+                    failures -= previous[2][0];
+                }
+            }
+            long count = Histogram.total(runs);
+            if (count == 0) {
+                continue;
+            }
+            sb.append(String.format("  %-6s n=%4d  wait p50 %,7d us p99 %,7d us   run p50 %,7d us p99 %,7d us   failed %d%n",
+                entry.getKey(), count,
+                Histogram.percentile(waits, 0.50) / 1_000, Histogram.percentile(waits, 0.99) / 1_000,
+                Histogram.percentile(runs, 0.50) / 1_000, Histogram.percentile(runs, 0.99) / 1_000,
+                failures));
+        }
+        return sb.toString();
+    }
+
+    public Map<String, Long> rejectionsByPolicy() {
+        Map<String, Long> result = new TreeMap<>();
+        rejectionsByPolicy.forEach((policy, count) -> result.put(policy, count.sum()));
+        return result;
+    }
+
+    /** The task our rejection handler is currently handling on this thread. */
+    private static final class Rejection {
+        final Runnable task;
+        boolean retried;
+
+        Rejection(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * The work queue as seen from outside the workers. Every element
+     * taken out through it left the queue without running.
+     */
+    private static final class RemovalCountingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+        private final BlockingQueue<Runnable> queue;
+        private final LongAdder removed;
+
+        RemovalCountingQueue(BlockingQueue<Runnable> queue, LongAdder removed) {
+            this.queue = queue;
+            this.removed = removed;
+        }
+
+        private Runnable counted(Runnable task) {
+            if (task != null) {
+                removed.increment();
+            }
+            return task;
+        }
+
+        @Override public Runnable poll() { return counted(queue.poll()); }
+        @Override public Runnable take() throws InterruptedException { return counted(queue.take()); }
+        @Override public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return counted(queue.poll(timeout, unit));
+        }
+
+        @Override
+        public boolean remove(Object task) {
+            if (queue.remove(task)) {
+                removed.increment();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> sink) {
+            return drainTo(sink, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> sink, int maxElements) {
+            int n = queue.drainTo(sink, maxElements);
+            removed.add(n);
+            return n;
+        }
+
+        @Override
+        public Iterator<Runnable> iterator() {
+            Iterator<Runnable> it = queue.iterator();
+            return new Iterator<Runnable>() {
+                @Override public boolean hasNext() { return it.hasNext(); }
+                @Override public Runnable next() { return it.next(); }
+                @Override public void remove() {
+                    it.remove();
+                    removed.increment();
+                }
+            };
+        }
+
+        @Override public Runnable peek() { return queue.peek(); }
+        @Override public int size() { return queue.size(); }
+        @Override public boolean offer(Runnable task) { return queue.offer(task); }
+        @Override public void put(Runnable task) throws InterruptedException { queue.put(task); }
+        @Override public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+            return queue.offer(task, timeout, unit);
+        }
+        @Override public int remainingCapacity() { return queue.remainingCapacity(); }
+    }
+
+    // ==================== Task Wrappers ====================
+
+    private interface Stamped {
+        String type();
+        long submittedAt();
+        void markStarted(long nanos);
+        long startedAt();
+    }
+
+    /** Plain Runnable submitted through execute(). */
+    private static final class StampedTask implements Runnable, Stamped {
+        private final String type;
+        private final Runnable task;
+        private final long submittedAt = System.nanoTime();
+        private long startedAt;  // Written and read by the worker only
+
+        StampedTask(String type, Runnable task) {
+            this.type = type;
+            this.task = task;
+        }
+
+        @Override public void run() { task.run(); }
+        @Override public String type() { return type; }
+        @Override public long submittedAt() { return submittedAt; }
+        @Override public void markStarted(long nanos) { startedAt = nanos; }
+        @Override public long startedAt() { return startedAt; }
+    }
+
+    /**
+     * Task submitted through submit(). FutureTask catches the task's
+     * exception, so afterExecute() sees t == null - remember failures here.
+     */
+    private static final class StampedFuture<T> extends FutureTask<T> implements Stamped {
+        private final String type;
+        private final long submittedAt = System.nanoTime();
+        private long startedAt;
+        private volatile boolean failed;
+
+        StampedFuture(String type, Callable<T> callable) {
+            super(callable);
+            this.type = type;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            failed = true;
+            super.setException(t);
+        }
+
+        @Override public String type() { return type; }
+        @Override public long submittedAt() { return submittedAt; }
+        @Override public void markStarted(long nanos) { startedAt = nanos; }
+        @Override public long startedAt() { return startedAt; }
+    }
+
+    private static final class TypeStats {
+        final Histogram queueWait = new Histogram();
+        final Histogram runTime = new Histogram();
+        final LongAdder failures = new LongAdder();
+    }
+
+    /**
+     * Latency histogram over a fixed array of 256 counters. Bucket bounds
+     * grow geometrically (each power of two of nanoseconds is split into
+     * 4 steps), so the reported percentile is off by at most 25%. A sample
+     * costs one atomic increment - no allocation, no lock. Unlike a
+     * histogram that is reset after each read, this one only grows:
+     * readers copy the counts and get an interval by subtracting an
+     * earlier copy, so several readers can watch it independently.
+     */
+    static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(64 * 4);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+        }
+
+        long[] counts() {
+            long[] copy = new long[counts.length()];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+
+        static long[] minus(long[] current, long[] previous) {
+            long[] delta = new long[current.length];
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = current[i] - previous[i];
+            }
+            return delta;
+        }
+
+        static long total(long[] counts) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            return total;
+        }
+
+        /** Upper bound of the bucket holding the q-th quantile; 0 if empty. */
+        static long percentile(long[] counts, double q) {
+            long rank = (long) Math.ceil(total(counts) * q);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int log = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (log - 2)) & 3;
+            return log * 4 + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket + 1;
+            }
+            int log = bucket / 4;
+            return (5L + bucket % 4) << (log - 2);
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine; measured on a 1-CPU machine):
+ *
+ * === Instrumented ThreadPoolExecutor ===
+ *
+ * --- Typed Workload, Snapshot Every 250 ms ---
+ *   pool: active 1, queued 0, done 26, rejected 0
+ *   fast   n=  20  wait p50     131 us p99   6,291 us   run p50   5,242 us p99   6,291 us   failed 2
+ *   slow   n=   6  wait p50     114 us p99   2,621 us   run p50  41,943 us p99  50,331 us   failed 0
+ *   pool: active 1, queued 0, done 52, rejected 0
+ *   fast   n=  20  wait p50     114 us p99   6,291 us   run p50   5,242 us p99   5,242 us   failed 2
+ *   slow   n=   6  wait p50      65 us p99     524 us   run p50  41,943 us p99  41,943 us   failed 0
+ * Totals:
+ *   pool: active 0, queued 0, done 66, rejected 0
+ *   fast   n=  51  wait p50     114 us p99   6,291 us   run p50   5,242 us p99   6,291 us   failed 6
+ *   slow   n=  15  wait p50      81 us p99   2,621 us   run p50  41,943 us p99  50,331 us   failed 0
+ *
+ * --- Rejections by Policy ---
+ *   {AbortPolicy=3, DiscardOldestPolicy=5}
+ *
+ * --- Overhead: 1,000,000 empty tasks ---
+ *   ThreadPoolExecutor:            232 ns/task
+ *   InstrumentedThreadPoolExec.:   550 ns/task   (wrapper + hooks: ~250-330 ns)
+ *
+ * The overhead is three nanoTime() calls, a wrapper allocation and a few
+ * counter and histogram increments per task. It doubles the cost of an
+ * empty task; for a task that runs a millisecond it is about 0.03%.
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. DURATIONS, NOT INSTANTS:
+ *    getQueue().size() tells you how long the line is right now. The
+ *    queue-wait histogram tells you how long tasks actually stood in it -
+ *    which is what the caller experiences.
+ *
+ * 2. DON'T MONITOR WITH THE POOL'S LOCK:
+ *    getPoolSize(), getActiveCount() and getCompletedTaskCount() take
+ *    mainLock; ArrayBlockingQueue.size() takes the queue lock. Counters
+ *    updated in the hooks give the same numbers without contending - as
+ *    long as every way out of the queue is counted: rejection, a handler's
+ *    discard, remove()/purge() and shutdownNow().
+ *
+ * 3. TAG BY TYPE:
+ *    One histogram for a pool that runs 5 ms and 40 ms tasks describes
+ *    neither. Per-type stats show which kind of task is slow and which
+ *    is waiting behind it.
+ *
+ * 4. FutureTask SWALLOWS EXCEPTIONS:
+ *    afterExecute() gets t == null for submit()ted tasks - the exception
+ *    is stored in the future. Override setException() (or call get() in
+ *    afterExecute) to count failures.
+ *
+ * 5. LOG-LINEAR HISTOGRAMS:
+ *    Fixed buckets, 25% precision, one atomic increment per sample, and
+ *    interval views by subtracting two copies. The whole wrapper costs a
+ *    few hundred ns per task (see above) - fine for tasks that do real
+ *    work, noticeable only for near-empty ones.
+ */
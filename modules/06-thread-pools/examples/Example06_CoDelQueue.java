@@ -0,0 +1,357 @@
+/**
+ * Example 06: CoDel Queue Management for Executors
+ *
+ * Example 02's rejection policies only act when the queue is completely
+ * FULL. Under sustained overload a 1,000-slot queue fills up and stays
+ * full: every task now waits behind 1,000 others, the caller has long
+ * since timed out, and the pool spends all its time producing answers
+ * nobody is waiting for. Goodput (useful completions) drops to zero
+ * while throughput looks perfect.
+ *
+ * CoDel ("controlled delay", from network routers) watches how long
+ * items SIT in the queue (their sojourn time), not how many there are:
+ * - Over each interval (100 ms) track the MINIMUM sojourn time
+ * - A short burst drains quickly: some task in the interval is fast
+ * - If even the fastest task waited longer than the target (5 ms),
+ *   the queue is a standing queue - we are overloaded
+ * - While overloaded, shed tasks that have waited too long
+ *
+ * Two shedding modes:
+ * - HEAD_DROP:     stay FIFO, drop stale tasks from the head
+ * - ADAPTIVE_LIFO: while overloaded, serve the NEWEST task first (its
+ *                  caller is still waiting) and drop stale ones
+ */
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+public class Example06_CoDelQueue {
+
+    private static final int WORKERS = 2;
+    private static final int QUEUE_CAPACITY = 1_000;
+    private static final long DEADLINE_MILLIS = 100;  // Caller gives up after this
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== CoDel Queue Management for Executors ===\n");
+
+        long capacity = measureCapacity();
+        System.out.printf("Pool capacity: ~%,d tasks/s (%d workers, 1 ms tasks)%n", capacity, WORKERS);
+        int offered = (int) (capacity * 2);
+        System.out.printf("%n--- 2x Overload: %,d tasks/s for 3 s, deadline %d ms ---%n", offered, DEADLINE_MILLIS);
+        System.out.println("  policy                 done  dropped  goodput/s    p50 ms    p99 ms");
+
+        for (String policy : new String[] {"AbortPolicy", "CallerRunsPolicy", "CoDel HEAD_DROP", "CoDel ADAPTIVE_LIFO"}) {
+            runOverload(policy, offered, 3);
+        }
+    }
+
+    /** Tasks per second WORKERS threads can complete with back-to-back 1 ms tasks. */
+    private static long measureCapacity() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+        int tasks = 1_000;
+        CountDownLatch done = new CountDownLatch(tasks);
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                sleep(1);
+                done.countDown();
+            });
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        executor.shutdown();
+        return tasks * 1_000_000_000L / nanos;
+    }
+
+    private static void runOverload(String policy, int perSecond, int seconds) throws InterruptedException {
+        int total = perSecond * seconds;
+        long[] latencies = new long[total];
+        Arrays.fill(latencies, -1);  // -1: rejected or shed
+        LongAdder dropped = new LongAdder();
+
+        ThreadPoolExecutor executor;
+        switch (policy) {
+            case "AbortPolicy":
+                executor = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(QUEUE_CAPACITY), new ThreadPoolExecutor.AbortPolicy());
+                break;
+            case "CallerRunsPolicy":
+                executor = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(QUEUE_CAPACITY), new ThreadPoolExecutor.CallerRunsPolicy());
+                break;
+            default:
+                CoDelQueue.Mode mode = policy.endsWith("LIFO") ? CoDelQueue.Mode.ADAPTIVE_LIFO : CoDelQueue.Mode.HEAD_DROP;
+                CoDelQueue queue = new CoDelQueue(QUEUE_CAPACITY, 5, 100, TimeUnit.MILLISECONDS, mode,
+                    task -> dropped.increment());
+                executor = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.SECONDS, queue,
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        executor.prestartAllCoreThreads();  // Every task goes through the queue
+
+        long start = System.nanoTime();
+        long periodNanos = 1_000_000_000L / perSecond;
+        for (int i = 0; i < total; i++) {
+            long delay = start + i * periodNanos - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            final int id = i;
+            final long submitted = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    sleep(1);
+                    latencies[id] = System.nanoTime() - submitted;
+                });
+            } catch (RejectedExecutionException e) {
+                dropped.increment();
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(DEADLINE_MILLIS);
+        long[] completed = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        long good = Arrays.stream(completed).filter(l -> l <= deadlineNanos).count();
+        System.out.printf("  %-19s  %,7d  %,7d  %,9d  %8.1f  %8.1f%n",
+            policy, completed.length, dropped.sum(), good / seconds,
+            percentileMillis(completed, 0.50), percentileMillis(completed, 0.99));
+    }
+
+    private static double percentileMillis(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * q))] / 1e6;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Bounded executor queue with CoDel overload detection.
+ *
+ * Plugs into a ThreadPoolExecutor unchanged: every insert stamps the task
+ * with its enqueue time, and take()/poll() decide - at dequeue time,
+ * when the sojourn is known - whether to run it or shed it. Shed tasks
+ * go to onShed (reply "busy", cancel a Future, count them...).
+ *
+ * Note: entries are wrapped, so ThreadPoolExecutor.remove(task) won't
+ * find them and shutdownNow() returns the wrappers.
+ */
+class CoDelQueue extends LinkedBlockingDeque<Runnable> {
+    private static final long serialVersionUID = 1L;
+
+    enum Mode { HEAD_DROP, ADAPTIVE_LIFO }
+
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final Mode mode;
+    private final transient Consumer<Runnable> onShed;
+
+    // CoDel state, guarded by "this" (a few field updates per dequeue)
+    private long intervalEnd = System.nanoTime();
+    private long minSojourn = Long.MAX_VALUE;
+    private volatile boolean overloaded;
+
+    CoDelQueue(int capacity, long target, long interval, TimeUnit unit, Mode mode, Consumer<Runnable> onShed) {
+        super(capacity);
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+        this.mode = mode;
+        this.onShed = onShed;
+    }
+
+    // Every insert in LinkedBlockingDeque (add, offer, put, push and
+    // their timed forms) ends in one of these six, so each task is
+    // stamped exactly once whichever method the caller picked
+
+    @Override
+    public boolean offerFirst(Runnable task) {
+        return super.offerFirst(stamp(task));
+    }
+
+    @Override
+    public boolean offerLast(Runnable task) {
+        return super.offerLast(stamp(task));
+    }
+
+    @Override
+    public void putFirst(Runnable task) throws InterruptedException {
+        super.putFirst(stamp(task));
+    }
+
+    @Override
+    public void putLast(Runnable task) throws InterruptedException {
+        super.putLast(stamp(task));
+    }
+
+    @Override
+    public boolean offerFirst(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        return super.offerFirst(stamp(task), timeout, unit);
+    }
+
+    @Override
+    public boolean offerLast(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        return super.offerLast(stamp(task), timeout, unit);
+    }
+
+    /** The inherited addAll links nodes directly, so route it through add(). */
+    @Override
+    public boolean addAll(Collection<? extends Runnable> tasks) {
+        if (tasks == this) {
+            throw new IllegalArgumentException();
+        }
+        boolean modified = false;
+        for (Runnable task : tasks) {
+            add(task);
+            modified = true;
+        }
+        return modified;
+    }
+
+    private static Entry stamp(Runnable task) {
+        Objects.requireNonNull(task);
+        return task instanceof Entry ? (Entry) task : new Entry(task);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        while (true) {
+            Entry entry = (Entry) (useLifo() ? takeLast() : takeFirst());
+            if (admit(entry)) {
+                return entry;
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            Entry entry = (Entry) (useLifo()
+                ? pollLast(remaining, TimeUnit.NANOSECONDS)
+                : pollFirst(remaining, TimeUnit.NANOSECONDS));
+            if (entry == null || admit(entry)) {
+                return entry;
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        while (true) {
+            Entry entry = (Entry) (useLifo() ? pollLast() : pollFirst());
+            if (entry == null || admit(entry)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * LIFO only while overloaded. Before serving the newest task, clear
+     * stale tasks off the head - otherwise they sit there until the queue
+     * is full and new work gets rejected.
+     */
+    private boolean useLifo() {
+        if (mode != Mode.ADAPTIVE_LIFO || !overloaded) {
+            return false;
+        }
+        long now = System.nanoTime();
+        Entry head;
+        while ((head = (Entry) peekFirst()) != null && now - head.enqueuedAt > 2 * targetNanos) {
+            if (removeFirstOccurrence(head)) {
+                onShed.accept(head.task);
+            }
+        }
+        return true;
+    }
+
+    /** Feed the sojourn to CoDel; false if this task should be shed instead of run. */
+    private boolean admit(Entry entry) {
+        long now = System.nanoTime();
+        long sojourn = now - entry.enqueuedAt;
+        boolean overloadedNow;
+        synchronized (this) {
+            if (now - intervalEnd >= 0) {
+                // Even the quickest task of the interval waited too long: standing queue
+                overloaded = minSojourn != Long.MAX_VALUE && minSojourn > targetNanos;
+                minSojourn = Long.MAX_VALUE;
+                intervalEnd = now + intervalNanos;
+            }
+            minSojourn = Math.min(minSojourn, sojourn);
+            overloadedNow = overloaded;
+        }
+        if (overloadedNow && sojourn > 2 * targetNanos) {
+            onShed.accept(entry.task);
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Entry implements Runnable {
+        final Runnable task;
+        final long enqueuedAt = System.nanoTime();
+
+        Entry(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine):
+ *
+ * === CoDel Queue Management for Executors ===
+ *
+ * Pool capacity: ~1,750 tasks/s (2 workers, 1 ms tasks)
+ *
+ * --- 2x Overload: 3,500 tasks/s for 3 s, deadline 100 ms ---
+ *   policy                 done  dropped  goodput/s    p50 ms    p99 ms
+ *   AbortPolicy            6,411    4,089        104     551.9     570.9
+ *   CallerRunsPolicy      10,500        0      1,058     545.9     572.2
+ *   CoDel HEAD_DROP        5,493    5,007      1,831      10.8      83.5
+ *   CoDel ADAPTIVE_LIFO    5,548    4,952      1,842      29.6      99.1
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. FULL-QUEUE POLICIES ACT TOO LATE:
+ *    AbortPolicy rejects only once 1,000 tasks are queued - and then
+ *    every task that IS accepted waits behind all of them. Throughput
+ *    stays at capacity, goodput (answers within the deadline) collapses.
+ *
+ * 2. CallerRunsPolicy IS BACKPRESSURE, NOT SHEDDING:
+ *    The submitter slows down, but the queue stays full and stale.
+ *    Nearly all its in-time answers are the tasks the caller ran itself.
+ *
+ * 3. MEASURE TIME, NOT LENGTH:
+ *    1,000 queued 10 us tasks are fine; 1,000 queued 1 ms tasks are a
+ *    second of delay. Sojourn time is what the caller feels.
+ *
+ * 4. MINIMUM, NOT AVERAGE:
+ *    A burst makes the average wait spike, but the queue drains and some
+ *    task in the interval gets through fast. Only a STANDING queue makes
+ *    the minimum exceed the target - so bursts are tolerated, overload is not.
+ *
+ * 5. LIFO UNDER OVERLOAD:
+ *    The newest request is the one whose caller is most likely still
+ *    waiting. Serving it first turns "everyone is slow" into "most are
+ *    fast, a few are shed" - and FIFO returns as soon as the load drops.
+ */
@@ -0,0 +1,334 @@
+/**
+ * Example 07: Key-Ordered Executor
+ *
+ * Per-account operations must run in order for the SAME account, but two
+ * accounts have nothing to do with each other. The usual answers:
+ * - One global lock / one single-thread executor: ordered, but serial
+ * - One newSingleThreadExecutor per key: a thread per account - no
+ * - N "striped" single-thread executors, key -> hash % N: ordered and
+ *   parallel, but a hot key's stripe is shared with 1/N of all other
+ *   keys, and they all wait behind it
+ *
+ * OrderedExecutor multiplexes per-key queues onto ONE shared pool:
+ * - execute(key, task) appends to that key's queue
+ * - A key with work is scheduled on the pool as a single "drainer";
+ *   only one drainer per key exists at a time, so its tasks run in order
+ * - A drainer that empties its queue removes the key from the map, so
+ *   an idle key costs nothing
+ * - A drainer runs at most BATCH tasks, then re-submits itself to the
+ *   back of the pool queue, so a hot key can't monopolize a worker
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class Example07_OrderedExecutor {
+
+    private static final int THREADS = 4;
+    private static final int COLD_KEYS = 1_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== Key-Ordered Executor ===\n");
+
+        orderingDemo();
+        hotKeyBenchmark();
+    }
+
+    private static void orderingDemo() throws InterruptedException {
+        System.out.println("--- Same Key: In Order. Different Keys: In Parallel ---");
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        OrderedExecutor ordered = new OrderedExecutor(pool);
+
+        CountDownLatch done = new CountDownLatch(6);
+        for (int i = 1; i <= 3; i++) {
+            for (String account : new String[] {"alice", "bob"}) {
+                final int step = i;
+                ordered.execute(account, () -> {
+                    System.out.println("  " + account + " op " + step + " on " + Thread.currentThread().getName());
+                    sleep(20);
+                    done.countDown();
+                });
+            }
+        }
+        done.await();
+        Thread.sleep(10);  // Let the drainers retire their keys
+        System.out.println("  Active keys after idle: " + ordered.activeKeys());
+        pool.shutdown();
+        System.out.println();
+    }
+
+    /**
+     * 4 threads, 1 ms (I/O-like) tasks. One hot key at 800 tasks/s needs
+     * ~0.85 of a thread; 1,000 cold keys share 2,000 tasks/s. Total load
+     * is ~3 threads' worth - fine for 4 shared workers, but the stripe
+     * that owns the hot key also gets a quarter of the cold traffic and
+     * is overloaded.
+     */
+    private static void hotKeyBenchmark() throws InterruptedException {
+        System.out.println("--- Hot Key: 800/s on one key + 2,000/s over 1,000 cold keys, 3 s ---");
+        System.out.println("  (latency = submit -> start)");
+        System.out.println("  executor                cold p50    cold p99     hot p99   out of order");
+
+        StripedExecutor striped = new StripedExecutor(THREADS);
+        runHotKey("striped single-thread", striped::execute);
+        striped.shutdown();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        OrderedExecutor ordered = new OrderedExecutor(pool);
+        runHotKey("OrderedExecutor", ordered::execute);
+        System.out.println("  OrderedExecutor active keys afterwards: " + ordered.activeKeys());
+        pool.shutdown();
+    }
+
+    private interface KeyedExecutor {
+        void execute(Object key, Runnable task);
+    }
+
+    private static void runHotKey(String label, KeyedExecutor executor) throws InterruptedException {
+        int seconds = 3;
+        int hotPerSecond = 800;
+        int coldPerSecond = 2_000;
+        int total = (hotPerSecond + coldPerSecond) * seconds;
+
+        Integer hotKey = -1;
+        int[] nextSeq = new int[COLD_KEYS + 1];      // Per key, assigned at submit
+        int[] expectedSeq = new int[COLD_KEYS + 1];  // Per key, checked when it runs
+        LongAdder outOfOrder = new LongAdder();
+        List<Long> coldLatencies = new ArrayList<>();
+        List<Long> hotLatencies = new ArrayList<>();
+        long[] latencies = new long[total];
+        boolean[] isHot = new boolean[total];
+        CountDownLatch done = new CountDownLatch(total);
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        long periodNanos = 1_000_000_000L / (hotPerSecond + coldPerSecond);
+        for (int i = 0; i < total; i++) {
+            long delay = start + i * periodNanos - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            boolean hot = random.nextInt(hotPerSecond + coldPerSecond) < hotPerSecond;
+            Integer key = hot ? hotKey : random.nextInt(COLD_KEYS);
+            int slot = hot ? COLD_KEYS : key;
+            int seq = nextSeq[slot]++;
+            final int id = i;
+            final long submitted = System.nanoTime();
+            isHot[id] = hot;
+            executor.execute(key, () -> {
+                // Runs serially per key, so plain int[] access is safe here
+                if (expectedSeq[slot]++ != seq) {
+                    outOfOrder.increment();
+                }
+                latencies[id] = System.nanoTime() - submitted;
+                sleep(1);
+                done.countDown();
+            });
+        }
+        done.await();
+
+        for (int i = 0; i < total; i++) {
+            (isHot[i] ? hotLatencies : coldLatencies).add(latencies[i]);
+        }
+        System.out.printf("  %-22s %8.1f ms %8.1f ms %8.1f ms   %,d%n", label,
+            percentileMillis(coldLatencies, 0.50), percentileMillis(coldLatencies, 0.99),
+            percentileMillis(hotLatencies, 0.99), outOfOrder.sum());
+    }
+
+    private static double percentileMillis(List<Long> values, double q) {
+        long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * q))] / 1e6;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The baseline: key -> one of N single-thread executors. */
+    private static final class StripedExecutor {
+        private final ExecutorService[] stripes;
+
+        StripedExecutor(int n) {
+            stripes = new ExecutorService[n];
+            for (int i = 0; i < n; i++) {
+                stripes[i] = Executors.newSingleThreadExecutor();
+            }
+        }
+
+        void execute(Object key, Runnable task) {
+            stripes[Math.floorMod(key.hashCode(), stripes.length)].execute(task);
+        }
+
+        void shutdown() {
+            for (ExecutorService stripe : stripes) {
+                stripe.shutdown();
+            }
+        }
+    }
+}
+
+/**
+ * Runs tasks with the same key one at a time, in submission order, on a
+ * shared Executor. Tasks with different keys run in parallel.
+ *
+ * Memory is proportional to keys with PENDING work: a key's queue is
+ * created by its first task and removed when its drainer runs dry.
+ *
+ * A task that throws does not stop its key: the exception goes to the
+ * worker thread's uncaught-exception handler and the next task runs.
+ */
+class OrderedExecutor {
+    private static final int BATCH = 16;  // Tasks per turn before yielding the worker
+
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, KeyQueue> queues = new ConcurrentHashMap<>();
+
+    OrderedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Appending happens inside compute(), i.e. under the map's lock for
+     * that key's bin. A drainer's "empty -> remove" step uses the same
+     * lock, so a task can never be added to a queue that is being
+     * retired: it either lands before (and is drained) or creates a new
+     * queue (and a new drainer).
+     */
+    public void execute(Object key, Runnable task) {
+        boolean[] created = new boolean[1];
+        KeyQueue queue = queues.compute(key, (k, existing) -> {
+            KeyQueue q = existing;
+            if (q == null) {
+                q = new KeyQueue(k);
+                created[0] = true;
+            }
+            q.tasks.add(task);
+            return q;
+        });
+        if (created[0]) {
+            queue.schedule();
+        }
+    }
+
+    /** Keys that currently have pending or running work. */
+    public int activeKeys() {
+        return queues.size();
+    }
+
+    /** One per key with work; at most one instance is ever scheduled. */
+    private final class KeyQueue implements Runnable {
+        final Object key;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        KeyQueue(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * If the executor refuses the drainer, retire the queue so the key
+         * isn't left in the map with nobody to run it. Tasks already in
+         * it are lost along with the one whose execute() sees the
+         * rejection.
+         */
+        void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                queues.remove(key, this);
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean retired = false;
+            try {
+                for (int i = 0; i < BATCH; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        if (tryRetire()) {
+                            retired = true;
+                            return;
+                        }
+                        continue;  // A task arrived just now: keep going
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Thread current = Thread.currentThread();
+                        current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                    }
+                }
+            } finally {
+                // Used up our turn (or a task threw an Error): go to the
+                // back of the line behind other keys
+                if (!retired) {
+                    schedule();
+                }
+            }
+        }
+
+        private boolean tryRetire() {
+            return queues.computeIfPresent(key, (k, q) -> q.tasks.isEmpty() ? null : q) == null;
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine):
+ *
+ * === Key-Ordered Executor ===
+ *
+ * --- Same Key: In Order. Different Keys: In Parallel ---
+ *   alice op 1 on pool-1-thread-1
+ *   bob op 1 on pool-1-thread-2
+ *   alice op 2 on pool-1-thread-1
+ *   bob op 2 on pool-1-thread-2
+ *   alice op 3 on pool-1-thread-1
+ *   bob op 3 on pool-1-thread-2
+ *   Active keys after idle: 0
+ *
+ * --- Hot Key: 800/s on one key + 2,000/s over 1,000 cold keys, 3 s ---
+ *   (latency = submit -> start)
+ *   executor                cold p50    cold p99     hot p99   out of order
+ *   striped single-thread       0.7 ms   1319.8 ms   1371.6 ms   0
+ *   OrderedExecutor             0.0 ms      8.2 ms     75.7 ms   0
+ *   OrderedExecutor active keys afterwards: 0
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. ORDER PER KEY, NOT PER THREAD:
+ *    Ordering only needs "one task of this key at a time, in sequence".
+ *    Tying a key to a fixed thread (striping) is one way to get that,
+ *    but it also ties unrelated keys to each other.
+ *
+ * 2. ONE DRAINER PER KEY:
+ *    The key's queue is scheduled on the pool when it is created and
+ *    re-scheduled only by its own drainer, so two workers never run the
+ *    same key at once. Happens-before flows through the queue and pool.
+ *
+ * 3. IDLE KEYS ARE FREE:
+ *    The map holds only keys with pending work. Retiring under the same
+ *    compute() lock that appends closes the "add to a dying queue" race.
+ *
+ * 4. FAIRNESS BY YIELDING:
+ *    A drainer gives its worker back after BATCH tasks. A hot key then
+ *    waits its turn in the pool queue like everyone else - it gets at
+ *    most one worker, and never starves the other keys.
+ *
+ * 5. HOT STRIPES:
+ *    With striping, a stripe's capacity is shared by the hot key and
+ *    1/N of everything else. Any imbalance in key popularity becomes
+ *    queueing on that one stripe while the other threads sit idle.
+ */
@@ -0,0 +1,516 @@
+/**
+ * Example 08: Hashed Timing Wheel
+ *
+ * ScheduledThreadPoolExecutor (Example 04) keeps its timers in a binary
+ * heap behind ONE lock: schedule and cancel are O(log n), and every
+ * submitting thread and every worker contends on that lock. That is fine
+ * for a handful of periodic jobs. It is not fine for request timeouts:
+ * millions of timers per minute, almost all cancelled because the
+ * request answered in time.
+ *
+ * A hashed timing wheel trades precision for O(1):
+ *
+ *          tick = 1 ms, wheel = 512 buckets (one rotation = 512 ms)
+ *
+ *               ┌───┬───┬───┬───┬───┬─────┬───┐
+ *   buckets:    │ 0 │ 1 │ 2 │ 3 │ 4 │ ... │511│   bucket = deadline tick % 512
+ *               └───┴─┬─┴───┴───┴───┴─────┴───┘   rounds = full rotations left
+ *                     │
+ *                     ▼
+ *                   [t1, rounds 0] ⇄ [t2, rounds 3] ⇄ ...   doubly linked
+ *
+ * - schedule(): allocate, push onto a lock-free MPSC queue - O(1)
+ * - cancel():   one CAS, push onto another MPSC queue - O(1)
+ * - One worker thread per tick: moves new timers into their buckets,
+ *   unlinks cancelled ones, and fires the current bucket's due timers
+ *   by handing them to a SEPARATE executor (a slow task can't delay
+ *   the clock)
+ *
+ * The price: a timer fires up to one tick late, never early.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class Example08_HashedWheelTimer {
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== Hashed Timing Wheel ===\n");
+
+        ExecutorService taskExecutor = Executors.newFixedThreadPool(2);
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 512, taskExecutor);
+
+        schedulingDemo(timer);
+        timer.stop();
+        taskExecutor.shutdown();
+
+        benchmark();
+    }
+
+    private static void schedulingDemo(HashedWheelTimer timer) throws InterruptedException {
+        System.out.println("--- schedule / scheduleAtFixedRate / scheduleWithFixedDelay ---");
+        long start = System.nanoTime();
+
+        CountDownLatch oneShot = new CountDownLatch(1);
+        timer.schedule(() -> {
+            System.out.printf("  [%4d ms] one-shot after 150 ms%n", sinceMillis(start));
+            oneShot.countDown();
+        }, 150, TimeUnit.MILLISECONDS);
+
+        HashedWheelTimer.Timeout cancelled = timer.schedule(
+            () -> System.out.println("  never printed"), 100, TimeUnit.MILLISECONDS);
+        System.out.println("  cancel() before it fires: " + cancelled.cancel());
+
+        CountDownLatch rateRuns = new CountDownLatch(4);
+        HashedWheelTimer.Timeout rate = timer.scheduleAtFixedRate(() -> {
+            System.out.printf("  [%4d ms] fixed rate, every 100 ms (task takes 30 ms)%n", sinceMillis(start));
+            sleep(30);
+            rateRuns.countDown();
+        }, 0, 100, TimeUnit.MILLISECONDS);
+
+        CountDownLatch delayRuns = new CountDownLatch(3);
+        HashedWheelTimer.Timeout delay = timer.scheduleWithFixedDelay(() -> {
+            System.out.printf("  [%4d ms] fixed delay, 100 ms after the previous run ended (task takes 30 ms)%n",
+                sinceMillis(start));
+            sleep(30);
+            delayRuns.countDown();
+        }, 0, 100, TimeUnit.MILLISECONDS);
+
+        oneShot.await();
+        rateRuns.await();
+        delayRuns.await();
+        rate.cancel();
+        delay.cancel();
+        Thread.sleep(200);  // Nothing more should print
+        System.out.println();
+    }
+
+    /**
+     * Request-timeout pattern, 1 submitting thread: schedule a 30 s
+     * timeout, and cancel the one scheduled WINDOW operations ago (its
+     * "request" completed). So 10,000 timers are live at any time and
+     * every timer is cancelled - nothing ever fires.
+     */
+    private static void benchmark() throws InterruptedException {
+        int total = 10_000_000;
+        int window = 10_000;
+        System.out.printf("--- Benchmark: schedule + cancel %,d timers (%,d live) ---%n", total, window);
+
+        for (int round = 0; round < 2; round++) {  // First round warms up the JIT
+            int ops = round == 0 ? total / 10 : total;
+
+            ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1);
+            stpe.setRemoveOnCancelPolicy(true);  // Otherwise cancelled tasks stay in the heap for 30 s
+            ScheduledFuture<?>[] futures = new ScheduledFuture<?>[window];
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                int slot = i % window;
+                if (futures[slot] != null) {
+                    futures[slot].cancel(false);
+                }
+                futures[slot] = stpe.schedule(Example08_HashedWheelTimer::noop, 30, TimeUnit.SECONDS);
+            }
+            long stpeNanos = System.nanoTime() - start;
+            stpe.shutdownNow();
+
+            HashedWheelTimer wheel = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 512, Runnable::run);
+            HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[window];
+            start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                int slot = i % window;
+                if (timeouts[slot] != null) {
+                    timeouts[slot].cancel();
+                }
+                timeouts[slot] = wheel.schedule(Example08_HashedWheelTimer::noop, 30, TimeUnit.SECONDS);
+            }
+            long wheelNanos = System.nanoTime() - start;
+            int leftOver = wheel.stop();
+
+            if (round == 1) {
+                System.out.printf("  ScheduledThreadPoolExecutor: %,6d ms  (%,d ns/op)%n",
+                    stpeNanos / 1_000_000, stpeNanos / ops);
+                System.out.printf("  HashedWheelTimer:            %,6d ms  (%,d ns/op)%n",
+                    wheelNanos / 1_000_000, wheelNanos / ops);
+                System.out.printf("  Timers still in the wheel at stop(): %,d%n", leftOver);
+            }
+        }
+    }
+
+    private static void noop() {
+    }
+
+    private static long sinceMillis(long start) {
+        return Duration.ofNanos(System.nanoTime() - start).toMillis();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Hashed timing wheel with one ticking thread.
+ *
+ * All wheel state (buckets, links, rounds) is touched ONLY by the worker
+ * thread. Other threads talk to it through two lock-free queues, so the
+ * wheel itself needs no locks at all.
+ *
+ * Periodic timers never overlap: the next run is scheduled when the
+ * current one finishes - at previous deadline + period (fixed rate) or
+ * at finish + delay (fixed delay), as with ScheduledThreadPoolExecutor.
+ *
+ * A task that throws goes to the uncaught-exception handler of the thread
+ * that ran it - the timer thread survives, even with Runnable::run as the
+ * executor. As with ScheduledThreadPoolExecutor, a periodic task that
+ * throws is not run again.
+ */
+class HashedWheelTimer {
+
+    /** Handle to a scheduled task. */
+    interface Timeout {
+        /** True if this call cancelled it; false if it already fired or was cancelled. */
+        boolean cancel();
+
+        boolean isCancelled();
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor taskExecutor;
+    private final Queue<WheelTimeout> newTimeouts = new ConcurrentLinkedQueue<>();        // MPSC
+    private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();  // MPSC
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stopped;
+    private long tick;  // Worker only
+
+    /**
+     * @param tick          resolution: timers fire up to one tick late
+     * @param ticksPerWheel buckets, rounded up to a power of two; make one
+     *                      rotation cover your typical delay
+     * @param taskExecutor  runs expired tasks; Runnable::run runs them on
+     *                      the timer thread (only for tiny tasks)
+     */
+    HashedWheelTimer(long tick, TimeUnit unit, int ticksPerWheel, Executor taskExecutor) {
+        if (tick <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("tick and ticksPerWheel must be positive");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.wheel = new Bucket[Math.max(1, size)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.taskExecutor = taskExecutor;
+        this.worker = new Thread(this::run, "wheel-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(task, unit.toNanos(delay), 0);
+    }
+
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return add(task, unit.toNanos(initialDelay), unit.toNanos(period));
+    }
+
+    public Timeout scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        return add(task, unit.toNanos(initialDelay), -unit.toNanos(delay));
+    }
+
+    /** Stops the clock; returns how many timers had not fired and were not cancelled. */
+    public int stop() throws InterruptedException {
+        stopped = true;
+        worker.interrupt();
+        worker.join();
+        int unprocessed = 0;
+        for (Bucket bucket : wheel) {
+            for (WheelTimeout t = bucket.head; t != null; t = t.next) {
+                if (!t.isCancelled()) {
+                    unprocessed++;
+                }
+            }
+        }
+        for (WheelTimeout t : newTimeouts) {
+            if (!t.isCancelled()) {
+                unprocessed++;
+            }
+        }
+        return unprocessed;
+    }
+
+    private WheelTimeout add(Runnable task, long delayNanos, long periodNanos) {
+        if (stopped) {
+            throw new RejectedExecutionException("Timer stopped");
+        }
+        WheelTimeout timeout = new WheelTimeout(task, now() + Math.max(0, delayNanos), periodNanos);
+        newTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    private long now() {
+        return System.nanoTime() - startTime;
+    }
+
+    // ==================== Worker thread ====================
+
+    private void run() {
+        while (!stopped) {
+            long now = waitForNextTick();
+            if (now < 0) {
+                break;
+            }
+            processCancelled();
+            transferNewTimeouts();
+            expire(wheel[(int) (tick & mask)], now);
+            tick++;
+        }
+    }
+
+    /** Sleeps until the end of the current tick; -1 if stopped meanwhile. */
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long now = now();
+            if (now >= deadline) {
+                return now;
+            }
+            if (stopped) {
+                return -1;
+            }
+            LockSupport.parkNanos(this, deadline - now);
+        }
+    }
+
+    private void processCancelled() {
+        WheelTimeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);  // O(1): doubly linked
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        // Bounded per tick, so a flood of schedule() calls can't stall the clock
+        for (int i = 0; i < 100_000; i++) {
+            WheelTimeout timeout = newTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (!timeout.isCancelled()) {
+                place(timeout);
+            }
+        }
+    }
+
+    private void place(WheelTimeout timeout) {
+        long deadlineTick = timeout.deadline / tickNanos;
+        timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+        long bucketTick = Math.max(deadlineTick, tick);  // Already overdue: fire this tick
+        wheel[(int) (bucketTick & mask)].add(timeout);
+    }
+
+    private void expire(Bucket bucket, long now) {
+        WheelTimeout timeout = bucket.head;
+        while (timeout != null) {
+            WheelTimeout next = timeout.next;
+            if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                bucket.remove(timeout);
+                timeout.fire();
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    // ==================== Timeout and bucket ====================
+
+    private final class WheelTimeout implements Timeout, Runnable {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final int FAILED = 3;   // A periodic task threw: no more runs
+
+        final Runnable task;
+        final long periodNanos;      // 0: one-shot, > 0: fixed rate, < 0: fixed delay
+        long deadline;               // Nanos since startTime
+        private volatile int state;  // Via STATE
+
+        // Worker only
+        long remainingRounds;
+        Bucket bucket;
+        WheelTimeout prev;
+        WheelTimeout next;
+
+        WheelTimeout(Runnable task, long deadline, long periodNanos) {
+            this.task = task;
+            this.deadline = deadline;
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            cancelledTimeouts.offer(this);  // The worker unlinks it on its next tick
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /** Worker thread: hand the task to the executor. */
+        void fire() {
+            boolean active = periodNanos == 0 ? STATE.compareAndSet(this, PENDING, EXPIRED) : state == PENDING;
+            if (!active) {
+                return;  // Cancelled
+            }
+            try {
+                taskExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                STATE.compareAndSet(this, PENDING, CANCELLED);  // Executor is shutting down
+            } catch (Throwable e) {
+                STATE.compareAndSet(this, PENDING, FAILED);
+                report(e);  // Whatever the executor throws must not stop the clock
+            }
+        }
+
+        /** Executor thread: run, then schedule the next period if still active. */
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                STATE.compareAndSet(this, PENDING, FAILED);
+                report(e);
+                return;
+            }
+            if (periodNanos != 0 && state == PENDING && !stopped) {
+                deadline = periodNanos > 0 ? deadline + periodNanos : now() - periodNanos;
+                newTimeouts.offer(this);  // Publishes deadline to the worker
+            }
+        }
+
+        private void report(Throwable e) {
+            Thread current = Thread.currentThread();
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        }
+    }
+
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(WheelTimeout.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Doubly linked list of timeouts; worker only. */
+    private static final class Bucket {
+        WheelTimeout head;
+        WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine):
+ *
+ * === Hashed Timing Wheel ===
+ *
+ * --- schedule / scheduleAtFixedRate / scheduleWithFixedDelay ---
+ *   cancel() before it fires: true
+ *   [  45 ms] fixed rate, every 100 ms (task takes 30 ms)
+ *   [  49 ms] fixed delay, 100 ms after the previous run ended (task takes 30 ms)
+ *   [ 145 ms] fixed rate, every 100 ms (task takes 30 ms)
+ *   [ 159 ms] one-shot after 150 ms
+ *   [ 189 ms] fixed delay, 100 ms after the previous run ended (task takes 30 ms)
+ *   [ 245 ms] fixed rate, every 100 ms (task takes 30 ms)
+ *   [ 321 ms] fixed delay, 100 ms after the previous run ended (task takes 30 ms)
+ *   [ 345 ms] fixed rate, every 100 ms (task takes 30 ms)
+ *   (the first runs are late by JVM warm-up of printf, not by the wheel)
+ *
+ * --- Benchmark: schedule + cancel 10,000,000 timers (10,000 live) ---
+ *   ScheduledThreadPoolExecutor:  3,095 ms  (309 ns/op)
+ *   HashedWheelTimer:             1,545 ms  (154 ns/op)
+ *   Timers still in the wheel at stop(): 10,000
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. O(1) BY HASHING TIME:
+ *    A timer's bucket is its deadline tick modulo the wheel size; timers
+ *    further out than one rotation carry a "rounds" counter. No heap, no
+ *    sifting, no comparisons.
+ *
+ * 2. SINGLE-WRITER WHEEL:
+ *    Only the timer thread touches buckets and links. Schedulers and
+ *    cancellers just push onto lock-free queues - no lock is shared
+ *    between submitting threads.
+ *
+ * 3. CANCEL IS A CAS:
+ *    The first cancel() or fire() to flip the state wins. The worker
+ *    unlinks cancelled timers on its next tick, so memory is returned
+ *    long before the (mostly irrelevant) deadline.
+ *
+ * 4. PRECISION IS THE TICK:
+ *    Timers fire up to one tick late. For timeouts measured in tens of
+ *    milliseconds or seconds, a 1-10 ms tick is plenty.
+ *
+ * 5. DON'T RUN TASKS ON THE CLOCK:
+ *    Expired tasks go to a separate executor. A slow task on the timer
+ *    thread would delay every other timer in the wheel - and a task that
+ *    throws there must be caught, or the thread dies and takes every
+ *    pending timer with it.
+ */
@@ -0,0 +1,354 @@
+/**
+ * Example 09: Batching Executor for Tiny Tasks
+ *
+ * Every execute() on a pool costs a queue insert (a lock or CAS on a
+ * shared queue) and often a wakeup of a parked worker (a system call and
+ * a context switch). For a task that does real work that is noise. For
+ * a task that increments a counter or prints a line, the overhead IS the
+ * task - the pool spends its time handing work around.
+ *
+ * BatchingExecutor sits in front of any Executor:
+ * - Each submitting thread appends to its OWN buffer (no sharing)
+ * - A full buffer (maxBatch tasks) is handed to the pool as ONE Runnable
+ * - A background flusher hands over partial buffers whose oldest task
+ *   has waited longer than the linger time, so a slow submitter's tasks
+ *   still run promptly
+ * - A worker runs a whole batch per dequeue
+ *
+ * The queue insert and the wakeup are now paid once per batch. The cost
+ * is latency: a task can wait up to the linger time before it is queued.
+ */
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Example09_BatchingExecutor {
+
+    private static final int SUBMITTERS = 2;
+    private static final int TASKS_PER_SUBMITTER = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== Batching Executor for Tiny Tasks ===\n");
+
+        lingerDemo();
+        benchmark();
+    }
+
+    private static void lingerDemo() throws InterruptedException {
+        System.out.println("--- Partial Batches Are Flushed After the Linger Time ---");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        BatchingExecutor batching = new BatchingExecutor(pool, 64, 5, TimeUnit.MILLISECONDS);
+
+        CountDownLatch done = new CountDownLatch(3);
+        long start = System.nanoTime();
+        for (int i = 1; i <= 3; i++) {
+            final int id = i;
+            batching.execute(() -> {
+                System.out.printf("  task %d ran after %d ms (batch of 64 never filled)%n",
+                    id, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                done.countDown();
+            });
+        }
+        done.await();
+        batching.shutdown();
+        pool.shutdown();
+        System.out.println();
+    }
+
+    /**
+     * 2 threads each submit 1,000,000 tasks that just count down a latch,
+     * into a 4-thread pool - directly, and through batching front-ends.
+     */
+    private static void benchmark() throws InterruptedException {
+        System.out.printf("--- %d submitters x %,d tiny tasks, 4 workers ---%n", SUBMITTERS, TASKS_PER_SUBMITTER);
+        int[] batchSizes = {1, 4, 16, 64, 256};
+        for (int round = 0; round < 2; round++) {  // First round warms up the JIT
+            boolean print = round == 1;
+
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            long direct = run(pool);
+            pool.shutdown();
+            if (print) {
+                System.out.printf("  %-18s %,12d tasks/s%n", "direct submission:", direct);
+            }
+
+            for (int batchSize : batchSizes) {
+                pool = Executors.newFixedThreadPool(4);
+                BatchingExecutor batching = new BatchingExecutor(pool, batchSize, 1, TimeUnit.MILLISECONDS);
+                long batched = run(batching);
+                batching.shutdown();
+                pool.shutdown();
+                if (print) {
+                    System.out.printf("  %-18s %,12d tasks/s%n", "batch size " + batchSize + ":", batched);
+                }
+            }
+        }
+    }
+
+    /** Tasks per second from SUBMITTERS threads until every task has run. */
+    private static long run(Executor executor) throws InterruptedException {
+        int total = SUBMITTERS * TASKS_PER_SUBMITTER;
+        CountDownLatch done = new CountDownLatch(total);
+        Runnable task = done::countDown;
+        Thread[] submitters = new Thread[SUBMITTERS];
+        for (int s = 0; s < SUBMITTERS; s++) {
+            submitters[s] = new Thread(() -> {
+                for (int i = 0; i < TASKS_PER_SUBMITTER; i++) {
+                    executor.execute(task);
+                }
+                if (executor instanceof BatchingExecutor) {
+                    ((BatchingExecutor) executor).flush();  // Don't wait for the linger on the tail
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : submitters) t.start();
+        for (Thread t : submitters) t.join();
+        done.await();
+        return total * 1_000_000_000L / (System.nanoTime() - start);
+    }
+}
+
+/**
+ * Executor front-end that coalesces tasks into batches per submitting
+ * thread. Tasks from ONE submitter run in submission order within a
+ * batch; batches may run concurrently, so there is no ordering across
+ * batches (just as with the underlying pool).
+ *
+ * A task that throws does not abort its batch: the exception goes to the
+ * worker's uncaught-exception handler and the next task runs.
+ */
+class BatchingExecutor implements Executor {
+    private final Executor delegate;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final List<Buffer> buffers = new CopyOnWriteArrayList<>();  // For the flusher
+    private final ThreadLocal<Buffer> localBuffer = ThreadLocal.withInitial(this::newBuffer);
+    private final Thread flusher;
+    private final LongAdder shed = new LongAdder();
+    private volatile boolean shutdown;
+
+    BatchingExecutor(Executor delegate, int maxBatch, long linger, TimeUnit unit) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be at least 1");
+        }
+        this.delegate = delegate;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = unit.toNanos(linger);
+        this.flusher = new Thread(this::flushLoop, "batch-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("BatchingExecutor is shut down");
+        }
+        Batch full = localBuffer.get().add(task);
+        if (full != null) {
+            delegate.execute(full);  // Outside the buffer lock: may block on a bounded pool
+        }
+    }
+
+    /** Hands the calling thread's pending tasks to the pool now. */
+    public void flush() {
+        Batch batch = localBuffer.get().drain(0);
+        if (batch != null) {
+            delegate.execute(batch);
+        }
+    }
+
+    /** Stops the flusher and hands every pending task to the pool. */
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        flusher.interrupt();
+        flusher.join();
+        for (Buffer buffer : buffers) {
+            Batch batch = buffer.drain(0);
+            if (batch != null) {
+                delegate.execute(batch);
+            }
+        }
+    }
+
+    /** Tasks dropped because the pool rejected a batch the flusher handed over. */
+    public long shedTasks() {
+        return shed.sum();
+    }
+
+    private Buffer newBuffer() {
+        Buffer buffer = new Buffer(Thread.currentThread());
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Every half linger: hand over buffers whose oldest task has waited
+     * a full linger, and forget buffers of threads that have died.
+     *
+     * There is no caller to throw a rejection to, so a batch the pool
+     * refuses is shed: counted, reported to the flusher's uncaught-
+     * exception handler, and the loop moves on to the next buffer.
+     */
+    private void flushLoop() {
+        long sleepNanos = Math.max(lingerNanos / 2, 100_000);
+        while (!shutdown) {
+            LockSupport.parkNanos(sleepNanos);
+            if (Thread.interrupted()) {
+                return;
+            }
+            for (Buffer buffer : buffers) {
+                Batch batch = buffer.drain(lingerNanos);
+                if (batch != null) {
+                    try {
+                        delegate.execute(batch);
+                    } catch (RejectedExecutionException e) {
+                        shed.add(batch.count);
+                        Thread current = Thread.currentThread();
+                        current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                    }
+                } else if (!buffer.owner.isAlive() && buffer.isEmpty()) {
+                    buffers.remove(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * One submitter's pending tasks. The lock is taken by the owner on
+     * every add and by the flusher only when it checks - practically
+     * uncontended, so it costs a CAS, not a queue insert plus a wakeup.
+     */
+    private final class Buffer {
+        final Thread owner;
+        private final ReentrantLock lock = new ReentrantLock();
+        private Runnable[] tasks = new Runnable[maxBatch];
+        private int count;
+        private long oldestAt;
+
+        Buffer(Thread owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * Adds the task; returns the batch to submit if that filled the
+         * buffer. shutdown() sets the flag before it drains, so checking
+         * it under the lock means a task is either drained or rejected.
+         */
+        Batch add(Runnable task) {
+            lock.lock();
+            try {
+                if (shutdown) {
+                    throw new RejectedExecutionException("BatchingExecutor is shut down");
+                }
+                if (count == 0) {
+                    oldestAt = System.nanoTime();  // One clock read per batch
+                }
+                tasks[count++] = task;
+                return count == maxBatch ? takeBatch() : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isEmpty() {
+            lock.lock();
+            try {
+                return count == 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Takes the pending tasks if the oldest has waited at least minAgeNanos. */
+        Batch drain(long minAgeNanos) {
+            lock.lock();
+            try {
+                if (count == 0 || System.nanoTime() - oldestAt < minAgeNanos) {
+                    return null;
+                }
+                return takeBatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Batch takeBatch() {
+            Batch batch = new Batch(tasks, count);
+            tasks = new Runnable[maxBatch];
+            count = 0;
+            return batch;
+        }
+    }
+
+    /** One dequeue, many tasks. */
+    private static final class Batch implements Runnable {
+        private final Runnable[] tasks;
+        private final int count;
+
+        Batch(Runnable[] tasks, int count) {
+            this.tasks = tasks;
+            this.count = count;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < count; i++) {
+                try {
+                    tasks[i].run();
+                } catch (RuntimeException e) {
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                }
+            }
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine):
+ *
+ * === Batching Executor for Tiny Tasks ===
+ *
+ * --- Partial Batches Are Flushed After the Linger Time ---
+ *   task 1 ran after 16 ms (batch of 64 never filled)
+ *   task 2 ran after 29 ms (batch of 64 never filled)
+ *   task 3 ran after 29 ms (batch of 64 never filled)
+ *   (linger is 5 ms; the rest is first-call printf warm-up)
+ *
+ * --- 2 submitters x 1,000,000 tiny tasks, 4 workers ---
+ *   direct submission:    6,840,804 tasks/s
+ *   batch size 1:         4,700,642 tasks/s   (batching overhead, no gain)
+ *   batch size 4:        10,195,391 tasks/s
+ *   batch size 16:       15,649,260 tasks/s
+ *   batch size 64:       15,684,228 tasks/s
+ *   batch size 256:      17,636,923 tasks/s
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. AMORTIZE THE HANDOFF:
+ *    A queue insert plus a wakeup costs hundreds of nanoseconds to
+ *    microseconds. Paid once per 64 tasks, it all but disappears.
+ *
+ * 2. PER-SUBMITTER BUFFERS:
+ *    A shared batch buffer would just move the contention. A buffer per
+ *    thread is touched by its owner and - rarely - by the flusher.
+ *
+ * 3. LINGER BOUNDS THE LATENCY:
+ *    "Flush when full" alone would strand the last few tasks of a quiet
+ *    submitter forever. Flushing by age caps the extra delay.
+ *
+ * 4. DIMINISHING RETURNS:
+ *    Going from 1 to 16 is a big win; past ~64 the handoff is already
+ *    negligible, and big batches hurt load balancing - one worker gets
+ *    256 tasks while another idles.
+ *
+ * 5. SAME IDEA ELSEWHERE:
+ *    Group commit (Module 10's write-ahead log), Nagle's algorithm and
+ *    Kafka's linger.ms all trade a bounded delay for per-item overhead.
+ */
@@ -1,5 +1,8 @@
 /**
  * Solution for Exercise 01: Web Crawler
+ *
+ * Run with "virtual" to crawl with one virtual thread per page (Java 21+)
+ * instead of a fixed pool of 4 platform threads.
  */
 
 import java.util.concurrent.*;
@@ -10,7 +13,8 @@ public class Exercise01_Solution {
     public static void main(String[] args) throws InterruptedException {
         System.out.println("=== Web Crawler Demo ===\n");
 
-        WebCrawler crawler = new WebCrawler(4, 2, 20);
+        boolean virtual = args.length > 0 && args[0].equals("virtual");
+        WebCrawler crawler = virtual ? WebCrawler.withVirtualThreads(2, 20) : new WebCrawler(4, 2, 20);
         Set<String> pages = crawler.crawl("https://example.com");
 
         System.out.println("\n--- Crawl Results ---");
@@ -25,23 +29,59 @@ class WebCrawler {
     private final int maxPages;
     private final Set<String> visited = ConcurrentHashMap.newKeySet();
     private final Random random = new Random();
+    // One party per page in flight, plus the caller of crawl()
+    private final Phaser inFlight = new Phaser(1);
 
     public WebCrawler(int threadCount, int maxDepth, int maxPages) {
-        this.executor = Executors.newFixedThreadPool(threadCount);
+        this(Executors.newFixedThreadPool(threadCount), maxDepth, maxPages);
+    }
+
+    private WebCrawler(ExecutorService executor, int maxDepth, int maxPages) {
+        this.executor = executor;
         this.maxDepth = maxDepth;
         this.maxPages = maxPages;
     }
 
+    /**
+     * One virtual thread per page: no pool size to tune, since a page
+     * spends nearly all its time waiting on the network. Falls back to a
+     * cached platform pool before Java 21.
+     */
+    public static WebCrawler withVirtualThreads(int maxDepth, int maxPages) {
+        return new WebCrawler(newVirtualThreadPerTaskExecutor(), maxDepth, maxPages);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() via reflection, so this
+     * file still compiles for Java 11. Falls back to a cached pool of
+     * platform threads (also one thread per task) on older JVMs.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("(virtual threads need Java 21+: using a cached platform pool)");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Tasks submit more tasks, so we can't shut the executor down until
+     * the last page is done - shutting down right after the first submit
+     * rejects every link it finds. A child registers with the phaser
+     * BEFORE its parent arrives, so the count can't reach zero early.
+     */
     public Set<String> crawl(String startUrl) {
         try {
             crawlRecursive(startUrl, 0);
-            
-            // Wait for all tasks to complete
+            inFlight.awaitAdvanceInterruptibly(inFlight.arrive(), 30, TimeUnit.SECONDS);
             executor.shutdown();
             executor.awaitTermination(30, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             executor.shutdownNow();
+        } catch (TimeoutException e) {
+            executor.shutdownNow();
         }
         return visited;
     }
@@ -58,25 +98,37 @@ class WebCrawler {
         }
 
         // Submit task to process this URL
+        inFlight.register();
         executor.execute(() -> {
-            System.out.println("[" + Thread.currentThread().getName() + 
-                "] Crawling: " + url + " (depth " + depth + ")");
-            
-            // Simulate network delay
-            sleep(100);
-            
-            // Get links from this page
-            List<String> links = fetchLinks(url);
-            
-            // Recursively crawl each link
-            for (String link : links) {
-                if (visited.size() < maxPages) {
-                    crawlRecursive(link, depth + 1);
+            try {
+                System.out.println("[" + threadName() +
+                    "] Crawling: " + url + " (depth " + depth + ")");
+
+                // Simulate network delay. No lock is held here, so on a
+                // virtual thread this unmounts instead of pinning a carrier
+                sleep(100);
+
+                // Get links from this page
+                List<String> links = fetchLinks(url);
+
+                // Recursively crawl each link
+                for (String link : links) {
+                    if (visited.size() < maxPages) {
+                        crawlRecursive(link, depth + 1);
+                    }
                 }
+            } finally {
+                inFlight.arriveAndDeregister();
             }
         });
     }
 
+    /** Virtual threads are unnamed by default; toString() shows the carrier. */
+    private static String threadName() {
+        Thread current = Thread.currentThread();
+        return current.getName().isEmpty() ? current.toString() : current.getName();
+    }
+
     private List<String> fetchLinks(String url) {
         // Simulate fetching links from a page
         List<String> links = new ArrayList<>();
@@ -114,6 +166,13 @@ class WebCrawler {
  *    than CPU cores because threads spend time waiting for I/O.
  * 
  * 4. GRACEFUL SHUTDOWN:
- *    shutdown() + awaitTermination() ensures all tasks complete
- *    before returning results.
+ *    Tasks that spawn tasks need a completion count (here a Phaser)
+ *    before shutdown(): shutdown() rejects new tasks, including the
+ *    ones running tasks would still submit.
+ *
+ * 5. VIRTUAL THREADS:
+ *    A crawler is the textbook virtual-thread workload: almost all wait.
+ *    Nothing here blocks while holding a monitor (Random is lock-free,
+ *    ConcurrentHashMap's bin locks are never held across I/O), so no
+ *    carrier gets pinned.
  */
@@ -1,12 +1,55 @@
 /**
  * Solution for Exercise 02: Build a Mini Thread Pool
+ *
+ * Two scheduling modes:
+ * - SHARED_QUEUE: every worker takes from one bounded BlockingQueue
+ * - WORK_STEALING: every worker owns a deque. Tasks submitted FROM a
+ *   worker go onto its own deque (no shared lock, and the data the
+ *   parent just touched is still in this core's cache). Idle workers
+ *   steal the OLDEST task from a random victim. Tasks submitted from
+ *   outside go to a shared injection queue.
+ *
+ * Idle workers don't poll. They push themselves onto an IDLE STACK and
+ * park; submit() pops exactly one - the most recently idle, whose cache
+ * is still warm - and unparks it. shutdown() unparks everyone.
+ *
+ * ELASTIC SIZING: with maxThreads > coreThreads, a controller thread
+ * measures how long submitted tasks wait in the queue. When the p99 wait
+ * stays above a target and no worker is idle, it adds workers. A submit()
+ * that finds nobody idle and the queue head already past the target adds
+ * one at once - the start of a burst can't wait for the next interval. A
+ * worker above core that stays idle for the whole keep-alive retires.
+ *
+ * RESULTS: submit(Callable) returns a TaskFuture - the future is itself
+ * the queued Runnable, so a task costs one allocation. cancel(true)
+ * interrupts the worker running it. invokeAll(), invokeAny() (which
+ * cancels the losers) and MiniCompletionService (results in the order
+ * they finish) are built on top.
  */
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.util.*;
 
 public class Exercise02_Solution {
 
+    private static final int FUTURES_IN_FLIGHT = 1_000;
+
     public static void main(String[] args) throws InterruptedException {
         System.out.println("=== Mini Thread Pool Demo ===\n");
 
@@ -22,46 +65,800 @@ public class Exercise02_Solution {
 
         pool.shutdown();
         System.out.println("\nAll tasks completed.");
+
+        measureIdleBehaviour();
+        benchmarkModes();
+        compareUnderBurstyLoad();
+        futuresDemo();
+        benchmarkFutures();
     }
-}
 
-class MiniThreadPool {
-    private final BlockingQueue<Runnable> workQueue;
-    private final List<Thread> workers;
-    private volatile boolean shutdown = false;
+    /**
+     * What the old poll(100 ms) loop cost: 10 wakeups per second per idle
+     * worker, and up to 100 ms added to shutdown. Now an idle worker is
+     * parked until there is work.
+     */
+    private static void measureIdleBehaviour() throws InterruptedException {
+        System.out.println("\n--- Idle Workers (8 workers) ---");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (MiniThreadPool.Mode mode : MiniThreadPool.Mode.values()) {
+            MiniThreadPool pool = new MiniThreadPool(8, 100, mode);
 
-    public MiniThreadPool(int numThreads, int queueCapacity) {
-        this.workQueue = new ArrayBlockingQueue<>(queueCapacity);
-        this.workers = new ArrayList<>();
+            // Pickup latency: submit to an idle pool, time until the task runs
+            long totalPickup = 0;
+            int samples = 200;
+            for (int i = 0; i < samples; i++) {
+                Thread.sleep(2);  // Let every worker go idle
+                CountDownLatch ran = new CountDownLatch(1);
+                long[] pickedUp = new long[1];
+                long submitted = System.nanoTime();
+                pool.submit(() -> {
+                    pickedUp[0] = System.nanoTime();
+                    ran.countDown();
+                });
+                ran.await();
+                totalPickup += pickedUp[0] - submitted;
+            }
+
+            // Idle CPU: worker CPU time over one idle second
+            long cpuBefore = workerCpuNanos(threads);
+            Thread.sleep(1_000);
+            long idleCpu = workerCpuNanos(threads) - cpuBefore;
+
+            long start = System.nanoTime();
+            pool.shutdown();
+            long shutdownMicros = (System.nanoTime() - start) / 1_000;
+
+            System.out.printf("  %-14s pickup %,6d us   idle CPU %,4d us/s   shutdown %,6d us%n",
+                mode, totalPickup / samples / 1_000, idleCpu / 1_000, shutdownMicros);
+        }
+    }
+
+    /** Total CPU time of the live "Worker-N" threads. */
+    private static long workerCpuNanos(ThreadMXBean threads) {
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("Worker-")) {
+                total += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+            }
+        }
+        return total;
+    }
 
-        for (int i = 0; i < numThreads; i++) {
-            Thread worker = new Thread(() -> {
-                while (!shutdown || !workQueue.isEmpty()) {
+    /**
+     * Fan-out: one task submits 200,000 tiny subtasks.
+     * Recursive: each task submits two children, 18 levels deep (~500k tasks).
+     */
+    private static void benchmarkModes() throws InterruptedException {
+        System.out.println("\n--- Shared Queue vs Work Stealing (4 workers) ---");
+        for (int round = 0; round < 2; round++) {  // First round warms up the JIT
+            boolean print = round == 1;
+            for (MiniThreadPool.Mode mode : MiniThreadPool.Mode.values()) {
+                long fanOut = runFanOut(mode, 200_000);
+                long recursive = runRecursive(mode, 18);
+                if (print) {
+                    System.out.printf("  %-14s fan-out %5d ms   recursive %5d ms%n", mode, fanOut, recursive);
+                }
+            }
+        }
+    }
+
+    private static long runFanOut(MiniThreadPool.Mode mode, int subtasks) throws InterruptedException {
+        // Shared mode needs room for every subtask: a worker blocked in
+        // put() on a full queue can't take from it - the pool deadlocks
+        MiniThreadPool pool = new MiniThreadPool(4, subtasks + 1, mode);
+        CountDownLatch done = new CountDownLatch(subtasks);
+        long start = System.nanoTime();
+        pool.submit(() -> {
+            for (int i = 0; i < subtasks; i++) {
+                spawn(pool, done::countDown);
+            }
+        });
+        done.await();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pool.shutdown();
+        return millis;
+    }
+
+    private static long runRecursive(MiniThreadPool.Mode mode, int depth) throws InterruptedException {
+        MiniThreadPool pool = new MiniThreadPool(4, 1 << (depth + 1), mode);
+        AtomicLong remaining = new AtomicLong((1L << (depth + 1)) - 1);  // Nodes in the tree
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        pool.submit(new TreeTask(pool, depth, remaining, done));
+        done.await();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pool.shutdown();
+        return millis;
+    }
+
+    private static final class TreeTask implements Runnable {
+        private final MiniThreadPool pool;
+        private final int depth;
+        private final AtomicLong remaining;
+        private final CountDownLatch done;
+
+        TreeTask(MiniThreadPool pool, int depth, AtomicLong remaining, CountDownLatch done) {
+            this.pool = pool;
+            this.depth = depth;
+            this.remaining = remaining;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            if (depth > 0) {
+                spawn(pool, new TreeTask(pool, depth - 1, remaining, done));
+                spawn(pool, new TreeTask(pool, depth - 1, remaining, done));
+            }
+            if (remaining.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Quiet phases at 200 tasks/s alternate with bursts at 4,000 tasks/s.
+     * Each task blocks for 2 ms (think: a remote call), so a burst needs
+     * a bit over 8 threads and a quiet phase less than one. The elastic
+     * pool averages fewer threads than static 8 - about as many as static
+     * 6 - with a p99 several times lower than either.
+     */
+    private static void compareUnderBurstyLoad() throws InterruptedException {
+        System.out.println("\n--- Bursty Load: quiet 200/s, bursts 4,000/s, 2 ms tasks ---");
+        runBursty("static 6", new MiniThreadPool(6, 100_000));
+        runBursty("static 8", new MiniThreadPool(8, 100_000));
+        runBursty("static 32", new MiniThreadPool(32, 100_000));
+        runBursty("elastic 2..32", new MiniThreadPool(2, 32, Duration.ofMillis(200),
+            Duration.ofMillis(5), 100_000, MiniThreadPool.Mode.SHARED_QUEUE));
+    }
+
+    private static void runBursty(String label, MiniThreadPool pool) throws InterruptedException {
+        int[] ratesPerSecond = {200, 4_000, 200, 4_000, 200, 4_000, 200};
+        int[] phaseMillis = {600, 400, 600, 400, 600, 400, 600};
+        int totalTasks = 0;
+        for (int i = 0; i < ratesPerSecond.length; i++) {
+            totalTasks += ratesPerSecond[i] * phaseMillis[i] / 1_000;
+        }
+        long[] latencies = new long[totalTasks];
+        CountDownLatch done = new CountDownLatch(totalTasks);
+
+        // Sample the pool size every 5 ms
+        AtomicLong threadSamples = new AtomicLong();
+        AtomicLong sampleCount = new AtomicLong();
+        AtomicInteger peak = new AtomicInteger();
+        Thread sampler = new Thread(() -> {
+            while (done.getCount() > 0) {
+                int size = pool.getPoolSize();
+                threadSamples.addAndGet(size);
+                sampleCount.incrementAndGet();
+                peak.accumulateAndGet(size, Math::max);
+                LockSupport.parkNanos(5_000_000);
+            }
+        });
+        sampler.start();
+
+        int submitted = 0;
+        long phaseStart = System.nanoTime();
+        for (int phase = 0; phase < ratesPerSecond.length; phase++) {
+            int phaseTasks = ratesPerSecond[phase] * phaseMillis[phase] / 1_000;
+            long phaseNanos = TimeUnit.MILLISECONDS.toNanos(phaseMillis[phase]);
+            for (int i = 0; i < phaseTasks; i++) {
+                long due = phaseStart + phaseNanos * i / phaseTasks;
+                long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                final int id = submitted++;
+                final long start = System.nanoTime();
+                pool.submit(() -> {
                     try {
-                        Runnable task = workQueue.poll(100, TimeUnit.MILLISECONDS);
-                        if (task != null) {
-                            task.run();
-                        }
+                        Thread.sleep(2);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
-                        break;
                     }
+                    latencies[id] = System.nanoTime() - start;
+                    done.countDown();
+                });
+            }
+            phaseStart += phaseNanos;
+        }
+        done.await();
+        sampler.join();
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("  %-14s p50 %,6d us   p99 %,7d us   avg threads %5.1f   peak %2d%n",
+            label, latencies[totalTasks / 2] / 1_000, latencies[totalTasks * 99 / 100] / 1_000,
+            (double) threadSamples.get() / Math.max(1, sampleCount.get()), peak.get());
+    }
+
+    private static void futuresDemo() throws InterruptedException {
+        System.out.println("\n--- Futures ---");
+        MiniThreadPool pool = new MiniThreadPool(4, 100);
+
+        TaskFuture<Integer> answer = pool.submit(() -> 6 * 7);
+        System.out.println("  submit(Callable):  " + answer.join());
+
+        // cancel(true) on a running task interrupts its worker
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        TaskFuture<String> slow = pool.submit(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+                return "finished";
+            } catch (InterruptedException e) {
+                stopped.countDown();
+                throw e;
+            }
+        });
+        started.await();
+        long cancelAt = System.nanoTime();
+        slow.cancel(true);
+        stopped.await();
+        System.out.printf("  cancel(true):      isCancelled=%b, task interrupted after %d us%n",
+            slow.isCancelled(), (System.nanoTime() - cancelAt) / 1_000);
+
+        List<Callable<Integer>> squares = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            final int n = i;
+            squares.add(() -> n * n);
+        }
+        int sum = 0;
+        for (TaskFuture<Integer> square : pool.invokeAll(squares)) {
+            sum += square.join();
+        }
+        System.out.println("  invokeAll:         sum of squares 1..10 = " + sum);
+
+        // Hedged request: ask three replicas, keep the first answer
+        int[] replicaMillis = {80, 30, 120};
+        CountDownLatch losersStopped = new CountDownLatch(replicaMillis.length - 1);
+        List<Callable<String>> replicas = new ArrayList<>();
+        for (int i = 0; i < replicaMillis.length; i++) {
+            final int id = i;
+            replicas.add(() -> {
+                try {
+                    Thread.sleep(replicaMillis[id]);
+                } catch (InterruptedException e) {
+                    losersStopped.countDown();
+                    throw e;
                 }
-            }, "Worker-" + i);
+                return "replica-" + id;
+            });
+        }
+        long start = System.nanoTime();
+        try {
+            String winner = pool.invokeAny(replicas);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            boolean interrupted = losersStopped.await(1, TimeUnit.SECONDS);
+            System.out.printf("  invokeAny:         %s answered in %d ms, losers interrupted: %b%n",
+                winner, millis, interrupted);
+        } catch (ExecutionException e) {
+            System.out.println("  invokeAny:         every replica failed: " + e.getCause());
+        }
+
+        MiniCompletionService<String> completions = new MiniCompletionService<>(pool);
+        int[] jobMillis = {60, 20, 40};
+        for (int i = 0; i < jobMillis.length; i++) {
+            final int id = i;
+            completions.submit(() -> {
+                Thread.sleep(jobMillis[id]);
+                return "job " + id + " (" + jobMillis[id] + " ms)";
+            });
+        }
+        System.out.println("  completion order:  " + completions.stream().collect(Collectors.joining(", ")));
+
+        pool.shutdown();
+    }
+
+    /**
+     * The future on its own: create, run and read 10,000,000 of them on
+     * one thread, so queues and wakeups don't drown the difference.
+     * Then both completion services on the same MiniThreadPool. Per task,
+     * ExecutorCompletionService allocates a FutureTask and a
+     * QueueingFuture wrapping it; MiniCompletionService only the TaskFuture.
+     */
+    private static void benchmarkFutures() throws InterruptedException {
+        int futures = 10_000_000;
+        int tasks = 1_000_000;
+        System.out.printf("%n--- Future Overhead: create + run + get, one thread, %,d futures ---%n", futures);
+        long[] nanos = new long[2];
+        for (int round = 0; round < 3; round++) {  // Early rounds warm up the JIT
+            nanos[0] = timeFutures(futures, c -> new FutureTask<>(c));
+            nanos[1] = timeFutures(futures, c -> new TaskFuture<>(c, null));
+        }
+        System.out.printf("  %-40s %5.1f ns/future%n", "FutureTask:", (double) nanos[0] / futures);
+        System.out.printf("  %-40s %5.1f ns/future%n", "TaskFuture:", (double) nanos[1] / futures);
+
+        System.out.printf("%n--- %,d Tasks, %,d in Flight, Taken in Completion Order (4 workers) ---%n",
+            tasks, FUTURES_IN_FLIGHT);
+        for (int round = 0; round < 2; round++) {
+            MiniThreadPool pool = new MiniThreadPool(4, tasks);
+            long withEcs = timeCompletions(new ExecutorCompletionService<>(task -> spawn(pool, task)), tasks);
+            pool.shutdown();
+
+            MiniThreadPool miniPool = new MiniThreadPool(4, tasks);
+            long withMini = timeCompletions(new MiniCompletionService<>(miniPool), tasks);
+            miniPool.shutdown();
+
+            if (round == 1) {
+                System.out.printf("  %-40s %,11d tasks/s%n", "ExecutorCompletionService:", withEcs);
+                System.out.printf("  %-40s %,11d tasks/s%n", "MiniCompletionService:", withMini);
+            }
+        }
+    }
+
+    /** Sums the results so the JIT can't drop the work. */
+    private static long timeFutures(int count, Function<Callable<Integer>, RunnableFuture<Integer>> factory) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+            RunnableFuture<Integer> future = factory.apply(() -> n & 1);
+            future.run();
+            try {
+                sum += future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if (sum != count / 2) {
+            throw new AssertionError("Lost results");
+        }
+        return nanos;
+    }
+
+    /** Tasks per second, keeping FUTURES_IN_FLIGHT submitted but not yet taken. */
+    private static long timeCompletions(CompletionService<Integer> completions, int tasks) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            if (i >= FUTURES_IN_FLIGHT) {
+                completions.take();
+            }
+            final int n = i;
+            completions.submit(() -> n & 1);
+        }
+        for (int i = 0; i < Math.min(tasks, FUTURES_IN_FLIGHT); i++) {
+            completions.take();
+        }
+        return tasks * 1_000_000_000L / (System.nanoTime() - start);
+    }
+
+    private static void spawn(MiniThreadPool pool, Runnable task) {
+        try {
+            pool.submit(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+class MiniThreadPool {
+    enum Mode { SHARED_QUEUE, WORK_STEALING }
+
+    private static final long CONTROL_INTERVAL_MILLIS = 10;
+    private static final long GROWTH_SPACING_NANOS = 500_000;
+
+    private final Mode mode;
+    private final BlockingQueue<Runnable> workQueue;  // The injection queue when stealing
+    private final Deque<Worker> idleWorkers = new ConcurrentLinkedDeque<>();  // Used as a stack
+    private volatile boolean shutdown = false;
+
+    // Sizing. workers is copy-on-write: replaced (under mainLock) when a
+    // worker is added or retires, so stealers scan it without locking.
+    private final int coreThreads;
+    private final int maxThreads;
+    private final long keepAliveNanos;
+    private final long queueWaitTargetNanos;
+    private final ReentrantLock mainLock = new ReentrantLock();
+    private volatile Worker[] workers = new Worker[0];
+    private int largestPoolSize;
+    private final AtomicInteger nextWorkerId = new AtomicInteger();
+    private final WaitHistogram queueWaits;  // null for a fixed-size pool
+    private final AtomicLong lastGrowth = new AtomicLong();
+    private final Thread controller;         // null for a fixed-size pool
+
+    public MiniThreadPool(int numThreads, int queueCapacity) {
+        this(numThreads, queueCapacity, Mode.SHARED_QUEUE);
+    }
+
+    public MiniThreadPool(int numThreads, int queueCapacity, Mode mode) {
+        this(numThreads, numThreads, Duration.ZERO, Duration.ZERO, queueCapacity, mode);
+    }
+
+    /**
+     * Elastic pool: starts coreThreads workers and grows up to maxThreads
+     * while the p99 queue wait exceeds queueWaitTarget. Workers above core
+     * retire after keepAlive without work.
+     */
+    public MiniThreadPool(int coreThreads, int maxThreads, Duration keepAlive, Duration queueWaitTarget,
+                          int queueCapacity, Mode mode) {
+        if (coreThreads < 1 || maxThreads < coreThreads) {
+            throw new IllegalArgumentException("Need 1 <= coreThreads <= maxThreads");
+        }
+        this.mode = mode;
+        this.workQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.coreThreads = coreThreads;
+        this.maxThreads = maxThreads;
+        this.keepAliveNanos = keepAlive.toNanos();
+        this.queueWaitTargetNanos = queueWaitTarget.toNanos();
+
+        addWorkers(coreThreads);
+        if (maxThreads > coreThreads) {
+            queueWaits = new WaitHistogram();
+            controller = new Thread(this::controlLoop, "Pool-Controller");
+            controller.setDaemon(true);
+            controller.start();
+        } else {
+            queueWaits = null;
+            controller = null;
+        }
+    }
+
+    public int getPoolSize() {
+        return workers.length;
+    }
+
+    public int getLargestPoolSize() {
+        mainLock.lock();
+        try {
+            return largestPoolSize;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /** Adds up to count workers without exceeding maxThreads; returns how many. */
+    private int addWorkers(int count) {
+        Worker[] started;
+        mainLock.lock();
+        try {
+            if (shutdown) {
+                return 0;
+            }
+            Worker[] current = workers;
+            int add = Math.min(count, maxThreads - current.length);
+            if (add <= 0) {
+                return 0;
+            }
+            Worker[] grown = Arrays.copyOf(current, current.length + add);
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = new Worker("Worker-" + nextWorkerId.getAndIncrement());
+            }
+            workers = grown;  // Publish before starting: stealers scan the array
+            largestPoolSize = Math.max(largestPoolSize, grown.length);
+            started = Arrays.copyOfRange(grown, current.length, grown.length);
+        } finally {
+            mainLock.unlock();
+        }
+        for (Worker worker : started) {
             worker.start();
-            workers.add(worker);
+        }
+        return started.length;
+    }
+
+    /**
+     * Called by a worker that idled for the whole keep-alive. Its deque is
+     * empty: only the owner pushes to it, and it just found nothing.
+     */
+    private boolean tryRetire(Worker self) {
+        mainLock.lock();
+        try {
+            Worker[] current = workers;
+            if (shutdown || current.length <= coreThreads) {
+                return false;
+            }
+            Worker[] shrunk = new Worker[current.length - 1];
+            int j = 0;
+            for (Worker worker : current) {
+                if (worker != self) {
+                    shrunk[j++] = worker;
+                }
+            }
+            workers = shrunk;
+        } finally {
+            mainLock.unlock();
+        }
+        // A task submitted while we were leaving may have found no one
+        // idle to wake - hand it to someone who is
+        if (!isDrained()) {
+            signalWork();
+        }
+        return true;
+    }
+
+    /**
+     * Every CONTROL_INTERVAL: take the p99 queue wait of that interval,
+     * smooth it, and grow if it is over target while nobody is idle.
+     *
+     * Damping: the EWMA ignores a single slow interval, each step at most
+     * doubles the pool, and we only grow while the backlog is NOT already
+     * shrinking - a backlog built before the last step keeps the p99 high
+     * for a while, but if it is draining, the workers we have are enough.
+     * Shrinking is damped by keep-alive: a worker must idle for the whole
+     * period before it retires.
+     */
+    private void controlLoop() {
+        double smoothedP99 = 0;
+        int lastBacklog = 0;
+        while (!shutdown) {
+            try {
+                Thread.sleep(CONTROL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long p99 = queueWaits.p99AndReset();
+            int backlog = workQueue.size();
+            boolean draining = backlog < lastBacklog;
+            lastBacklog = backlog;
+            if (p99 < 0) {
+                smoothedP99 = 0;  // Nothing was dequeued: no evidence of overload
+                continue;
+            }
+            smoothedP99 = smoothedP99 == 0 ? p99 : 0.5 * smoothedP99 + 0.5 * p99;
+            if (smoothedP99 > queueWaitTargetNanos && idleWorkers.isEmpty() && !draining) {
+                int size = workers.length;
+                int wanted = (int) Math.ceil(size * (smoothedP99 / queueWaitTargetNanos - 1));
+                addWorkers(Math.max(1, Math.min(size, wanted)));
+            }
         }
     }
 
+    private final class Worker extends Thread {
+        final WorkStealingDeque<Runnable> deque = new WorkStealingDeque<>();
+
+        Worker(String name) {
+            super(name);
+        }
+
+        boolean belongsTo(MiniThreadPool pool) {
+            return MiniThreadPool.this == pool;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Runnable task = findTask(this);
+                if (task != null) {
+                    task.run();
+                    continue;
+                }
+                if (shutdown && isDrained()) {
+                    break;
+                }
+                if (awaitWork(this) && tryRetire(this)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * SHARED_QUEUE: the queue. WORK_STEALING: own deque (LIFO), then the
+     * injection queue, then steal (FIFO).
+     */
+    private Runnable findTask(Worker self) {
+        if (mode == Mode.SHARED_QUEUE) {
+            return workQueue.poll();
+        }
+        Runnable task = self.deque.pop();
+        if (task == null) {
+            task = workQueue.poll();
+        }
+        if (task == null) {
+            task = steal(self);
+        }
+        return task;
+    }
+
+    /**
+     * Park until submit() or shutdown() unparks us.
+     *
+     * We publish "I'm idle" BEFORE the final look for work, and submit()
+     * publishes the task BEFORE looking for an idle worker - so either we
+     * see the task, or the submitter sees us. An unpark() that arrives
+     * before park() is not lost: park() then returns at once.
+     *
+     * Returns true if we were above core size and idled for the whole
+     * keep-alive without anyone handing us work: time to retire.
+     */
+    private boolean awaitWork(Worker self) {
+        idleWorkers.push(self);
+        if (!isDrained() || shutdown) {
+            idleWorkers.remove(self);
+            return false;
+        }
+        if (workers.length > coreThreads) {
+            long deadline = System.nanoTime() + keepAliveNanos;
+            LockSupport.parkNanos(this, keepAliveNanos);
+            // Still on the stack means no waker popped us
+            return idleWorkers.remove(self) && System.nanoTime() - deadline >= 0;
+        }
+        LockSupport.park(this);
+        idleWorkers.remove(self);  // Spurious wakeup or shutdown: not popped by a waker
+        return false;
+    }
+
+    /** Wake exactly one idle worker: the most recently parked. False if none was idle. */
+    private boolean signalWork() {
+        Worker idle = idleWorkers.poll();
+        if (idle == null) {
+            return false;
+        }
+        LockSupport.unpark(idle);
+        return true;
+    }
+
+    /** One pass over the other workers, starting at a random one. */
+    private Runnable steal(Worker self) {
+        Worker[] all = workers;
+        int n = all.length;
+        int start = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; i++) {
+            Worker victim = all[(start + i) % n];
+            if (victim != self) {
+                Runnable task = victim.deque.steal();
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isDrained() {
+        if (!workQueue.isEmpty()) {
+            return false;
+        }
+        for (Worker worker : workers) {
+            if (!worker.deque.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blocks if the queue is full. In WORK_STEALING mode a task submitted
+     * by one of this pool's own workers goes onto that worker's deque -
+     * never blocks, and is accepted even during shutdown() so running
+     * tasks can finish their subtasks.
+     */
     public void submit(Runnable task) throws InterruptedException {
+        Thread current = Thread.currentThread();
+        if (mode == Mode.WORK_STEALING && current instanceof Worker && ((Worker) current).belongsTo(this)) {
+            ((Worker) current).deque.push(task);
+            if (!idleWorkers.isEmpty()) {
+                signalWork();  // Someone idle could steal it
+            }
+            return;
+        }
         if (shutdown) {
             throw new RejectedExecutionException("Pool is shutdown");
         }
-        workQueue.put(task);
+        workQueue.put(queueWaits != null ? new QueuedTask(task, queueWaits) : task);
+        if (!signalWork() && queueWaits != null) {
+            growIfBacklogged();
+        }
+    }
+
+    /**
+     * Nobody was idle to take the task we just queued. If the task at the
+     * head of the queue has already waited longer than the target, the
+     * workers are not keeping up right now: add one without waiting for
+     * the controller's next interval.
+     *
+     * The head stays old until the whole backlog is gone, so that alone
+     * would keep adding workers long after there are enough: at most one
+     * per GROWTH_SPACING, which gives the last one time to start taking
+     * tasks.
+     */
+    private void growIfBacklogged() {
+        Runnable head = workQueue.peek();
+        long now = System.nanoTime();
+        long last = lastGrowth.get();
+        if (!(head instanceof QueuedTask)
+                || now - ((QueuedTask) head).enqueuedAt <= queueWaitTargetNanos
+                || now - last <= GROWTH_SPACING_NANOS) {
+            return;
+        }
+        if (lastGrowth.compareAndSet(last, now)) {
+            addWorkers(1);
+        }
+    }
+
+    /** Like submit(Runnable), but the result comes back through the returned future. */
+    public <T> TaskFuture<T> submit(Callable<T> task) throws InterruptedException {
+        return submit(task, null);
+    }
+
+    /** onDone runs once, on the thread that completes or cancels the future. */
+    <T> TaskFuture<T> submit(Callable<T> task, Consumer<? super TaskFuture<T>> onDone) throws InterruptedException {
+        TaskFuture<T> future = new TaskFuture<>(task, onDone);
+        submit((Runnable) future);
+        return future;
+    }
+
+    /**
+     * Submits every task and waits until all are done. If interrupted,
+     * cancels whatever hasn't finished.
+     *
+     * Called from one of this pool's own tasks, it runs the subtasks no
+     * worker has started yet itself, newest first, instead of parking -
+     * a pool whose workers all sit in invokeAll() would have nobody left
+     * to run the subtasks.
+     */
+    public <T> List<TaskFuture<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        List<TaskFuture<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(submit(task));
+            }
+            Thread current = Thread.currentThread();
+            if (current instanceof Worker && ((Worker) current).belongsTo(this)) {
+                for (int i = futures.size() - 1; i >= 0; i--) {
+                    futures.get(i).run();  // No-op if a worker got there first
+                }
+            }
+            for (TaskFuture<T> future : futures) {
+                future.await();
+            }
+            return futures;
+        } catch (InterruptedException | RuntimeException e) {
+            for (TaskFuture<T> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the result of the first task to succeed and cancels the
+     * rest, interrupting those already running: the losers of a hedged
+     * request give their connection back as soon as there is a winner.
+     * Throws the last failure if every task fails.
+     *
+     * Don't call this from one of this pool's tasks with every worker
+     * busy - the tasks would wait in the queue behind the caller.
+     */
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        if (tasks.isEmpty()) {
+            throw new IllegalArgumentException("No tasks");
+        }
+        MiniCompletionService<T> completions = new MiniCompletionService<>(this);
+        List<TaskFuture<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(completions.put(task));
+            }
+            ExecutionException failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    return completions.take().get();
+                } catch (ExecutionException e) {
+                    failure = e;
+                }
+            }
+            throw failure;
+        } finally {
+            for (TaskFuture<T> future : futures) {
+                future.cancel(true);  // Returns false for those already done
+            }
+        }
     }
 
     public void shutdown() throws InterruptedException {
         shutdown = true;
+        if (controller != null) {
+            // Stop growth first, so the workers we join below are all there are
+            controller.interrupt();
+            controller.join();
+        }
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);  // Idle workers re-check and exit
+        }
         for (Thread worker : workers) {
             worker.join();
         }
@@ -69,21 +866,558 @@ class MiniThreadPool {
 
     public List<Runnable> shutdownNow() {
         shutdown = true;
+        if (controller != null) {
+            controller.interrupt();
+        }
         for (Thread worker : workers) {
             worker.interrupt();
         }
+        List<Runnable> queued = new ArrayList<>();
+        workQueue.drainTo(queued);
         List<Runnable> remaining = new ArrayList<>();
-        workQueue.drainTo(remaining);
+        for (Runnable task : queued) {
+            remaining.add(task instanceof QueuedTask ? ((QueuedTask) task).task : task);
+        }
+        for (Worker worker : workers) {
+            Runnable task;
+            while ((task = worker.deque.steal()) != null || !worker.deque.isEmpty()) {
+                if (task != null) {
+                    remaining.add(task);
+                }
+            }
+        }
         return remaining;
     }
 
+    /** A submitted task stamped with its enqueue time. */
+    private static final class QueuedTask implements Runnable {
+        final Runnable task;
+        private final WaitHistogram waits;
+        private final long enqueuedAt = System.nanoTime();
+
+        QueuedTask(Runnable task, WaitHistogram waits) {
+            this.task = task;
+            this.waits = waits;
+        }
+
+        @Override
+        public void run() {
+            waits.record(System.nanoTime() - enqueuedAt);
+            task.run();
+        }
+    }
+
+    /**
+     * Log-linear histogram of queue waits: 4 sub-buckets per power of two
+     * of microseconds, so a percentile is within 25%. Recording is one
+     * atomic increment; the controller reads and clears it every interval.
+     */
+    private static final class WaitHistogram {
+        private final AtomicLongArray counts = new AtomicLongArray(64 * 4);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucketOf(Math.max(0, nanos) >> 10));
+        }
+
+        /** p99 of everything recorded since the last call, or -1 if nothing was. */
+        long p99AndReset() {
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.getAndSet(i, 0);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(total * 0.99);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBoundMicros(i) << 10;
+                }
+            }
+            return upperBoundMicros(snapshot.length - 1) << 10;
+        }
+
+        private static int bucketOf(long micros) {
+            if (micros < 4) {
+                return (int) micros;
+            }
+            int log = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (log - 2)) & 3;
+            return log * 4 + sub;
+        }
+
+        private static long upperBoundMicros(int bucket) {
+            if (bucket < 4) {
+                return bucket + 1;
+            }
+            int log = bucket / 4;
+            int sub = bucket % 4;
+            return (5L + sub) << (log - 2);
+        }
+    }
+}
+
+/**
+ * The future of a MiniThreadPool task, and the Runnable the pool queues
+ * for it.
+ *
+ * The state leaves NEW exactly once, by CAS - whoever wins decides the
+ * outcome:
+ *
+ *   NEW -> NORMAL | EXCEPTIONAL             the runner finished
+ *   NEW -> CANCELLED                        cancel(false)
+ *   NEW -> INTERRUPTING -> INTERRUPTED      cancel(true)
+ *
+ * A running task is still NEW; the runner slot (claimed by CAS, so a
+ * task queued twice still runs once) tells the canceller whom to
+ * interrupt. INTERRUPTING fences the interrupt: the runner can't return -
+ * so its worker can't move on to another task - until the canceller has
+ * delivered it. The runner then clears it, so the interrupt only ever
+ * hits the task it was meant for.
+ *
+ * That is two CASes per task, and nothing is allocated to complete a
+ * future: waiter nodes exist only for threads that actually block.
+ */
+class TaskFuture<T> implements RunnableFuture<T> {
+    private static final int NEW = 0;
+    private static final int NORMAL = 1;
+    private static final int EXCEPTIONAL = 2;
+    private static final int CANCELLED = 3;
+    private static final int INTERRUPTING = 4;
+    private static final int INTERRUPTED = 5;
+
+    private static final VarHandle STATE;
+    private static final VarHandle RUNNER;
+    private static final VarHandle WAITERS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            STATE = lookup.findVarHandle(TaskFuture.class, "state", int.class);
+            RUNNER = lookup.findVarHandle(TaskFuture.class, "runner", Thread.class);
+            WAITERS = lookup.findVarHandle(TaskFuture.class, "waiters", Waiter.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Callable<T> task;
+    private final Consumer<? super TaskFuture<T>> onDone;  // May be null
+    private volatile int state = NEW;
+    private volatile Thread runner;
+    private volatile Waiter waiters;  // Treiber stack of blocked get() callers
+    private Object outcome;           // Result or Throwable, published by the state write
+
+    TaskFuture(Callable<T> task, Consumer<? super TaskFuture<T>> onDone) {
+        this.task = task;
+        this.onDone = onDone;
+    }
+
+    /** Runs the task at most once; a no-op if it is cancelled or already claimed. */
+    @Override
+    public void run() {
+        if (state != NEW || !RUNNER.compareAndSet(this, null, Thread.currentThread())) {
+            return;
+        }
+        if (state == NEW) {  // Not cancelled while we claimed it
+            Object result;
+            int completed;
+            try {
+                result = task.call();
+                completed = NORMAL;
+            } catch (Throwable e) {
+                result = e;
+                completed = EXCEPTIONAL;
+            }
+            outcome = result;  // Only read once the CAS below has published it
+            if (STATE.compareAndSet(this, NEW, completed)) {
+                finish();
+                return;
+            }
+        }
+        if (state >= INTERRUPTING) {
+            while (state == INTERRUPTING) {
+                Thread.yield();  // The canceller is between CAS and interrupt()
+            }
+            Thread.interrupted();  // Clear it before the worker runs its next task
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (state != NEW || !STATE.compareAndSet(this, NEW, mayInterruptIfRunning ? INTERRUPTING : CANCELLED)) {
+            return false;
+        }
+        if (mayInterruptIfRunning) {
+            try {
+                Thread t = runner;
+                if (t != null) {
+                    t.interrupt();
+                }
+            } finally {
+                state = INTERRUPTED;
+            }
+        }
+        finish();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state >= CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state != NEW;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!await(true, unit.toNanos(timeout))) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    /**
+     * get() for lambdas and streams: a failure is rethrown as an unchecked
+     * CompletionException, as CompletableFuture.join() does.
+     */
+    public T join() {
+        try {
+            await();
+            return report();
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    void await() throws InterruptedException {
+        await(false, 0);
+    }
+
+    /** Returns false on timeout. Only a thread that really has to park allocates a node. */
+    private boolean await(boolean timed, long nanos) throws InterruptedException {
+        if (state != NEW) {
+            return true;
+        }
+        long deadline = System.nanoTime() + nanos;
+        Waiter node = new Waiter(Thread.currentThread());
+        do {
+            node.next = waiters;
+        } while (!WAITERS.compareAndSet(this, node.next, node));
+        // Re-check after pushing: finish() either sees our node or we see the state
+        while (state == NEW) {
+            if (Thread.interrupted()) {
+                removeWaiter(node);
+                throw new InterruptedException();
+            }
+            if (!timed) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    removeWaiter(node);
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unlinks the node of a get() that gave up, so repeated timed gets on
+     * a long-running task don't pile up nodes. Marks it first, then drops
+     * every marked node it finds; if a predecessor turns out to be marked
+     * too, or the head moved, it starts over - as FutureTask does.
+     */
+    private void removeWaiter(Waiter node) {
+        node.thread = null;
+        retry:
+        while (true) {
+            Waiter pred = null;
+            for (Waiter q = waiters, next; q != null; q = next) {
+                next = q.next;
+                if (q.thread != null) {
+                    pred = q;
+                } else if (pred != null) {
+                    pred.next = next;
+                    if (pred.thread == null) {
+                        continue retry;  // pred was removed under us
+                    }
+                } else if (!WAITERS.compareAndSet(this, q, next)) {
+                    continue retry;
+                }
+            }
+            return;
+        }
+    }
+
+    /** Wakes every blocked get(). */
+    private void finish() {
+        if (waiters != null) {  // Usually nobody is blocked: skip the atomic swap
+            for (Waiter w = (Waiter) WAITERS.getAndSet(this, null); w != null; w = w.next) {
+                Thread t = w.thread;
+                if (t != null) {  // null: that get() gave up
+                    LockSupport.unpark(t);
+                }
+            }
+        }
+        if (onDone != null) {
+            onDone.accept(this);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T report() throws ExecutionException {
+        int s = state;
+        if (s == NORMAL) {
+            return (T) outcome;
+        }
+        if (s == EXCEPTIONAL) {
+            throw new ExecutionException((Throwable) outcome);
+        }
+        throw new CancellationException();
+    }
+
+    private static final class Waiter {
+        volatile Thread thread;  // Cleared when its get() times out or is interrupted
+        volatile Waiter next;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
+
+/**
+ * Futures in the order their tasks finish, like ExecutorCompletionService.
+ * A finished TaskFuture queues itself from its completion hook, so there
+ * is no wrapper object per task.
+ *
+ * It is a CompletionService, so code written against the JDK interface
+ * takes either one.
+ */
+class MiniCompletionService<T> implements CompletionService<T> {
+    private final MiniThreadPool pool;
+    private final BlockingQueue<TaskFuture<T>> completed = new LinkedBlockingQueue<>();
+    private final Consumer<TaskFuture<T>> onDone = completed::add;  // One hook, shared by every task
+    private final AtomicInteger outstanding = new AtomicInteger();  // Submitted, not yet taken
+
+    MiniCompletionService(MiniThreadPool pool) {
+        this.pool = pool;
+    }
+
+    /** Blocks while the pool's queue is full, like BlockingQueue.put(). */
+    public TaskFuture<T> put(Callable<T> task) throws InterruptedException {
+        outstanding.incrementAndGet();
+        try {
+            return pool.submit(task, onDone);
+        } catch (InterruptedException | RuntimeException e) {
+            outstanding.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * CompletionService.submit() can't throw InterruptedException: an
+     * interrupt while waiting for queue space rejects the task and leaves
+     * the interrupt flag set.
+     */
+    @Override
+    public TaskFuture<T> submit(Callable<T> task) {
+        try {
+            return put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for queue space", e);
+        }
+    }
+
+    @Override
+    public TaskFuture<T> submit(Runnable task, T result) {
+        return submit(Executors.callable(task, result));
+    }
+
+    /** Waits for the next task to finish (or be cancelled). */
+    @Override
+    public TaskFuture<T> take() throws InterruptedException {
+        TaskFuture<T> future = completed.take();
+        outstanding.decrementAndGet();
+        return future;
+    }
+
+    @Override
+    public TaskFuture<T> poll() {
+        TaskFuture<T> future = completed.poll();
+        if (future != null) {
+            outstanding.decrementAndGet();
+        }
+        return future;
+    }
+
+    @Override
+    public TaskFuture<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        TaskFuture<T> future = completed.poll(timeout, unit);
+        if (future != null) {
+            outstanding.decrementAndGet();
+        }
+        return future;
+    }
+
+    /**
+     * The results of every task submitted so far, in the order they
+     * finish. The stream blocks for each result; a failed task throws
+     * CompletionException when the stream reaches it.
+     */
+    public Stream<T> stream() {
+        return IntStream.range(0, outstanding.get()).mapToObj(i -> {
+            try {
+                return take().join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        });
+    }
+}
+
+/**
+ * Chase-Lev work-stealing deque.
+ *
+ * The owner pushes and pops at the BOTTOM without any CAS (except for the
+ * very last element). Thieves take from the TOP with a CAS, so they only
+ * contend with each other - and they take the oldest task, which in a
+ * recursive computation is usually the biggest chunk of remaining work.
+ *
+ *    top (thieves steal here)                 bottom (owner pushes/pops)
+ *     │                                         │
+ *     ▼                                         ▼
+ *   [ t5 ][ t6 ][ t7 ][ t8 ][    ][    ][    ][    ]   circular array
+ *
+ * bottom is volatile and written only by the owner; top only moves
+ * forward, by CAS. The volatile write of bottom followed by the volatile
+ * read of top in pop() is the StoreLoad fence the algorithm needs.
+ */
+class WorkStealingDeque<T> {
+    private static final int INITIAL_CAPACITY = 64;  // Power of two
+
+    private volatile Object[] array = new Object[INITIAL_CAPACITY];
+    private volatile long bottom;
+    private final AtomicLong top = new AtomicLong();
+
+    /** Owner only. */
+    void push(T task) {
+        long b = bottom;
+        long t = top.get();
+        Object[] a = array;
+        if (b - t >= a.length) {
+            a = grow(a, t, b);
+        }
+        a[(int) (b & (a.length - 1))] = task;
+        bottom = b + 1;  // Publishes the element to thieves
+    }
+
+    /** Owner only: newest task, or null if empty. */
+    @SuppressWarnings("unchecked")
+    T pop() {
+        long b = bottom - 1;
+        Object[] a = array;
+        bottom = b;
+        long t = top.get();
+        if (t > b) {
+            bottom = b + 1;  // Was empty
+            return null;
+        }
+        int index = (int) (b & (a.length - 1));
+        T task = (T) a[index];
+        if (t == b) {
+            // Last element: a thief may be taking it right now
+            if (!top.compareAndSet(t, t + 1)) {
+                task = null;
+            }
+            bottom = b + 1;
+            return task;
+        }
+        a[index] = null;  // No thief can reach this slot
+        return task;
+    }
+
+    /** Any thread: oldest task, or null if empty or we lost a race. */
+    @SuppressWarnings("unchecked")
+    T steal() {
+        long t = top.get();
+        long b = bottom;
+        if (t >= b) {
+            return null;
+        }
+        Object[] a = array;
+        T task = (T) a[(int) (t & (a.length - 1))];
+        if (task == null || !top.compareAndSet(t, t + 1)) {
+            return null;
+        }
+        return task;
+    }
+
+    boolean isEmpty() {
+        return top.get() >= bottom;
+    }
+
+    private Object[] grow(Object[] old, long t, long b) {
+        Object[] bigger = new Object[old.length * 2];
+        for (long i = t; i < b; i++) {
+            bigger[(int) (i & (bigger.length - 1))] = old[(int) (i & (old.length - 1))];
+        }
+        array = bigger;
+        return bigger;
+    }
 }
 
 /*
  * KEY INSIGHTS:
  *
- * 1. WORKER LOOP: Each worker polls the queue (with timeout to check shutdown).
+ * 1. WORKER LOOP: Each worker takes work until there is none, then parks.
  * 2. SHUTDOWN: Set flag so no new tasks are accepted; workers drain the queue.
  * 3. SHUTDOWN NOW: Interrupt workers and drainTo() to get unexecuted tasks.
- * 4. BlockingQueue.put() blocks when full; poll(timeout) allows checking shutdown.
+ * 4. BlockingQueue.put() blocks when full. Workers don't block IN the
+ *    queue, so that the pool - not the queue - decides who wakes up.
+ * 5. ONE QUEUE = ONE LOCK: In shared mode every submit and every take goes
+ *    through the same lock. Subtasks submitted by workers make it worse -
+ *    and a worker blocked in put() on a full queue can deadlock the pool.
+ * 6. WORK STEALING: Local LIFO keeps a task next to the data its parent
+ *    just touched; stealing FIFO from a random victim spreads the largest
+ *    (oldest) pieces of work with almost no contention. This is the
+ *    ForkJoinPool design.
+ * 7. NO POLLING: poll(100 ms) wakes every idle worker 10 times a second
+ *    just to check a flag, and adds up to 100 ms to shutdown. Parking on
+ *    an idle stack costs nothing while idle, wakes ONE worker per task
+ *    (no thundering herd), and picks the one that ran most recently.
+ * 8. SIZE BY MEASUREMENT: A fixed size is a guess - too small and bursts
+ *    queue up, too big and threads sit idle all day. Queue wait is the
+ *    direct symptom of too few threads, so the controller grows on it;
+ *    idleness is the symptom of too many, so keep-alive shrinks on it.
+ *    Smoothing, a cap on step size and "only while the backlog isn't
+ *    already draining" keep it from overshooting. A periodic controller
+ *    alone reacts one interval late, which is exactly where the tail
+ *    latency of a burst comes from - hence the extra check in submit().
+ * 9. A FUTURE IS JUST A STATE MACHINE: One CAS'd int plus a result field.
+ *    Making the future the queued Runnable and completion a hook (not a
+ *    wrapper task) keeps it to one object per task. The INTERRUPTING
+ *    state is what makes cancel(true) safe on a pooled thread: without
+ *    it, a late interrupt lands on whatever task the worker runs next.
  */
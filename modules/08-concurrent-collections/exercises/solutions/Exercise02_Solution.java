@@ -1,14 +1,16 @@
 /**
  * Solution for Exercise 02: Bounded Task Queue with BlockingQueue and Worker Threads
+ *
+ * Idle workers park on a stack instead of polling the queue with a timeout:
+ * submit() wakes exactly one (the most recently idle), shutdown() wakes all.
  */
 
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 import java.util.*;
 
 public class Exercise02_Solution {
 
-    private static final Runnable POISON = () -> {};
-
     public static void main(String[] args) throws InterruptedException {
         TaskProcessor processor = new TaskProcessor(2, 5);
         for (int i = 0; i < 6; i++) {
@@ -17,12 +19,34 @@ public class Exercise02_Solution {
         }
         processor.shutdown();
         System.out.println("Done.");
+
+        // Pickup latency: submit to an idle processor, time until the task starts
+        TaskProcessor idle = new TaskProcessor(4, 16);
+        long totalPickup = 0;
+        int samples = 100;
+        for (int i = 0; i < samples; i++) {
+            Thread.sleep(2);  // Let every worker go idle
+            CountDownLatch started = new CountDownLatch(1);
+            long[] startedAt = new long[1];
+            long submitted = System.nanoTime();
+            idle.submit(() -> {
+                startedAt[0] = System.nanoTime();
+                started.countDown();
+            });
+            started.await();
+            totalPickup += startedAt[0] - submitted;
+        }
+        long start = System.nanoTime();
+        idle.shutdown();
+        System.out.printf("Idle pickup %,d us, shutdown %,d us%n",
+            totalPickup / samples / 1_000, (System.nanoTime() - start) / 1_000);
     }
 }
 
 class TaskProcessor {
     private final BlockingQueue<Runnable> queue;
     private final List<Thread> workers;
+    private final Deque<Thread> idleWorkers = new ConcurrentLinkedDeque<>();  // Used as a stack
     private volatile boolean shutdown = false;
 
     public TaskProcessor(int numWorkers, int queueCapacity) {
@@ -30,32 +54,41 @@ class TaskProcessor {
         this.workers = new ArrayList<>();
 
         for (int i = 0; i < numWorkers; i++) {
-            Thread w = new Thread(() -> {
-                try {
-                    while (!shutdown || !queue.isEmpty()) {
-                        Runnable task = queue.poll(100, TimeUnit.MILLISECONDS);
-                        if (task == POISON) break;
-                        if (task != null) task.run();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }, "Worker-" + i);
+            Thread w = new Thread(this::runWorker, "Worker-" + i);
             w.start();
             workers.add(w);
         }
     }
 
+    private void runWorker() {
+        Thread self = Thread.currentThread();
+        while (!self.isInterrupted()) {
+            Runnable task = queue.poll();
+            if (task != null) {
+                task.run();
+                continue;
+            }
+            if (shutdown) break;  // Queue is empty and nothing new is accepted
+            // Publish "idle" before the last check, so a concurrent submit()
+            // either leaves its task visible to us or finds us on the stack
+            idleWorkers.push(self);
+            if (queue.isEmpty() && !shutdown) {
+                LockSupport.park(this);
+            }
+            idleWorkers.remove(self);
+        }
+    }
+
     public void submit(Runnable task) throws InterruptedException {
         if (shutdown) throw new RejectedExecutionException("shutdown");
         queue.put(task);
+        Thread idle = idleWorkers.poll();
+        if (idle != null) LockSupport.unpark(idle);
     }
 
     public void shutdown() throws InterruptedException {
         shutdown = true;
-        for (int i = 0; i < workers.size(); i++) {
-            queue.put(POISON);
-        }
+        for (Thread w : workers) LockSupport.unpark(w);
         for (Thread w : workers) w.join();
     }
 }
@@ -0,0 +1,619 @@
+/**
+ * Example 03: Sharded Single-Writer Ledger
+ *
+ * BankAccount (Module 2) and BankAccountWithLock (Module 5) put a lock on
+ * every account. That works until a handful of accounts become "hot":
+ * every thread then queues on the same few locks and throughput collapses.
+ *
+ * This example flips the design around (the "single-writer principle"):
+ * - Accounts are partitioned across N shards (accountId % N)
+ * - Each shard is ONE thread that exclusively owns its balances
+ * - Other threads never touch balances; they send commands to a queue
+ * - Balances are plain long[] fields - no locks, no CAS, no volatile
+ *
+ * Cross-shard transfers use a two-phase message protocol:
+ *   Phase 1 (DEBIT):  source shard checks funds and debits the source
+ *   Phase 2 (CREDIT): source shard sends a CREDIT message to the target shard
+ *
+ * A load generator with a Zipf account distribution compares the ledger
+ * against lock-per-account transfers.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+public class Example03_ShardedLedger {
+
+    private static final int NUM_ACCOUNTS = 10_000;
+    private static final long INITIAL_BALANCE = 1_000;
+    private static final int CLIENT_THREADS = 4;
+    private static final int OPS_PER_CLIENT = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("=== Sharded Single-Writer Ledger ===\n");
+
+        basicDemo();
+        benchmark();
+    }
+
+    private static void basicDemo() throws Exception {
+        System.out.println("--- Basic Operations (4 shards) ---");
+        ShardedLedger ledger = new ShardedLedger(4, 8, 1_000);
+
+        // Account 1 lives on shard 1, account 2 on shard 2: cross-shard transfer
+        System.out.println("transfer(1 -> 2, 300): " + ledger.transfer(1, 2, 300).get());
+        // Account 1 and 5 both live on shard 1: local transfer
+        System.out.println("transfer(1 -> 5, 200): " + ledger.transfer(1, 5, 200).get());
+        System.out.println("transfer(1 -> 2, 9999): " + ledger.transfer(1, 2, 9_999).get());
+        System.out.println("withdraw(3, 50): " + ledger.withdraw(3, 50).get());
+        ledger.deposit(3, 25).get();
+
+        for (int id = 1; id <= 5; id++) {
+            System.out.println("  Account " + id + ": " + ledger.getBalance(id).get());
+        }
+        System.out.println("Total (should be 7975): " + ledger.totalBalance());
+        ledger.shutdown();
+        System.out.println();
+    }
+
+    private static void benchmark() throws Exception {
+        for (double skew : new double[]{0.0, 1.2}) {
+            System.out.println("--- Zipf skew " + skew + " (" + CLIENT_THREADS + " clients, "
+                + (CLIENT_THREADS * OPS_PER_CLIENT) + " transfers) ---");
+            ZipfGenerator zipf = new ZipfGenerator(NUM_ACCOUNTS, skew);
+
+            runLockedBaseline(zipf);
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int shards = 1; shards <= Math.max(2, cores); shards *= 2) {
+                runLedger(zipf, shards);
+            }
+            System.out.println();
+        }
+    }
+
+    private static void runLockedBaseline(ZipfGenerator zipf) throws InterruptedException {
+        LockedAccount[] accounts = new LockedAccount[NUM_ACCOUNTS];
+        for (int i = 0; i < NUM_ACCOUNTS; i++) {
+            accounts[i] = new LockedAccount(i, INITIAL_BALANCE);
+        }
+
+        long start = System.nanoTime();
+        Thread[] clients = new Thread[CLIENT_THREADS];
+        for (int c = 0; c < CLIENT_THREADS; c++) {
+            final long seed = c;
+            clients[c] = new Thread(() -> {
+                Random rand = new Random(seed);
+                for (int i = 0; i < OPS_PER_CLIENT; i++) {
+                    int from = zipf.next(rand);
+                    int to = zipf.next(rand);
+                    if (from != to) {
+                        accounts[from].transfer(1 + rand.nextInt(10), accounts[to]);
+                    }
+                }
+            });
+        }
+        for (Thread t : clients) t.start();
+        for (Thread t : clients) t.join();
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        for (LockedAccount account : accounts) total += account.getBalance();
+        report("lock-per-account", elapsed, total);
+    }
+
+    private static void runLedger(ZipfGenerator zipf, int shards) throws InterruptedException {
+        ShardedLedger ledger = new ShardedLedger(shards, NUM_ACCOUNTS, INITIAL_BALANCE);
+
+        long start = System.nanoTime();
+        Thread[] clients = new Thread[CLIENT_THREADS];
+        for (int c = 0; c < CLIENT_THREADS; c++) {
+            final long seed = c;
+            clients[c] = new Thread(() -> {
+                Random rand = new Random(seed);
+                // Bound the number of in-flight commands per client (backpressure)
+                Semaphore inFlight = new Semaphore(1_024);
+                for (int i = 0; i < OPS_PER_CLIENT; i++) {
+                    int from = zipf.next(rand);
+                    int to = zipf.next(rand);
+                    if (from == to) {
+                        continue;
+                    }
+                    inFlight.acquireUninterruptibly();
+                    ledger.transfer(from, to, 1 + rand.nextInt(10))
+                        .whenComplete((ok, ex) -> inFlight.release());
+                }
+                inFlight.acquireUninterruptibly(1_024);  // Wait for our last commands
+            });
+        }
+        for (Thread t : clients) t.start();
+        for (Thread t : clients) t.join();
+        long elapsed = System.nanoTime() - start;
+
+        report("ledger, " + shards + " shard(s)", elapsed, ledger.totalBalance());
+        ledger.shutdown();
+    }
+
+    private static void report(String name, long elapsedNanos, long total) {
+        long ops = (long) CLIENT_THREADS * OPS_PER_CLIENT;
+        System.out.printf("  %-22s %,12d transfers/sec   total=%d%n",
+            name, ops * 1_000_000_000L / Math.max(1, elapsedNanos), total);
+    }
+}
+
+/**
+ * A ledger whose balances are partitioned across single-threaded shards.
+ *
+ * All public methods are thread-safe and asynchronous: they enqueue a
+ * command and return a CompletableFuture that the owning shard completes.
+ * An invalid account id or amount is rejected before anything is sent, so
+ * a bad request can never reach - and stall - a shard.
+ *
+ * The shard completes the future on its own thread, so dependent stages
+ * attached without an executor (thenApply, whenComplete, ...) run there
+ * too, in the middle of the shard's batch. A callback that blocks stalls
+ * every account on that shard; use the ...Async variants with your own
+ * executor for anything that may wait.
+ */
+class ShardedLedger {
+    private final Shard[] shards;
+    private final int numAccounts;
+    private final CountDownLatch drained;  // Shards that have seen Shutdown.DRAIN
+    private volatile boolean closed;
+
+    public ShardedLedger(int numShards, int numAccounts, long initialBalance) {
+        this.shards = new Shard[numShards];
+        this.numAccounts = numAccounts;
+        this.drained = new CountDownLatch(numShards);
+        for (int i = 0; i < numShards; i++) {
+            // Shard i owns accounts i, i + N, i + 2N, ...
+            int owned = (numAccounts - i + numShards - 1) / numShards;
+            shards[i] = new Shard(i, owned, initialBalance);
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    public CompletableFuture<Void> deposit(int accountId, long amount) {
+        checkOpen();
+        checkAccount(accountId);
+        requirePositive(amount);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        shardOf(accountId).send(new Credit(accountId, amount, result));
+        return result.thenApply(ok -> null);
+    }
+
+    public CompletableFuture<Boolean> withdraw(int accountId, long amount) {
+        checkOpen();
+        checkAccount(accountId);
+        requirePositive(amount);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        shardOf(accountId).send(new Debit(accountId, -1, amount, result));
+        return result;
+    }
+
+    /**
+     * Transfer between any two accounts.
+     *
+     * The command goes to the SOURCE shard. If the target lives on the same
+     * shard, both balances are updated in one step. Otherwise the source
+     * shard debits and forwards a CREDIT to the target shard, which
+     * completes the future once the money has arrived.
+     */
+    public CompletableFuture<Boolean> transfer(int fromId, int toId, long amount) {
+        checkOpen();
+        checkAccount(fromId);
+        checkAccount(toId);
+        requirePositive(amount);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        shardOf(fromId).send(new Debit(fromId, toId, amount, result));
+        return result;
+    }
+
+    public CompletableFuture<Long> getBalance(int accountId) {
+        checkOpen();
+        checkAccount(accountId);
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        shardOf(accountId).send(new Query(accountId, result));
+        return result;
+    }
+
+    /**
+     * Sum of all balances. Only exact when no transfers are in flight,
+     * because a debited amount may still be travelling as a CREDIT message.
+     */
+    public long totalBalance() {
+        checkOpen();
+        long total = 0;
+        for (Shard shard : shards) {
+            CompletableFuture<Long> sum = new CompletableFuture<>();
+            shard.send(new SumAll(sum));
+            total += sum.join();
+        }
+        return total;
+    }
+
+    /**
+     * Two rounds, because a shard can't simply stop: another shard may
+     * already have debited a transfer and be forwarding its CREDIT here.
+     *
+     * DRAIN: each shard finishes the commands queued before it, then
+     * rejects everything except CREDITs. Once every shard has passed
+     * DRAIN, no more debits happen - and every CREDIT a debit produced
+     * was queued before its source shard counted down.
+     * STOP: sent after that, so it lands behind those CREDITs. Anything
+     * still queued behind STOP (a client that raced shutdown) is failed.
+     */
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                for (Shard shard : shards) {
+                    shard.send(Shutdown.DRAIN);
+                }
+                drained.await();
+                for (Shard shard : shards) {
+                    shard.send(Shutdown.STOP);
+                }
+            }
+        }
+        for (Shard shard : shards) {
+            shard.join();
+        }
+    }
+
+    private Shard shardOf(int accountId) {
+        return shards[accountId % shards.length];
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Ledger is shut down");
+        }
+    }
+
+    private void checkAccount(int accountId) {
+        if (accountId < 0 || accountId >= numAccounts) {
+            throw new IllegalArgumentException("No such account: " + accountId);
+        }
+    }
+
+    private static void requirePositive(long amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+    }
+
+    // ---------- Commands ----------
+
+    private interface Command {
+        /** Completes the caller's future exceptionally (no-op for control messages). */
+        void fail(Throwable cause);
+    }
+
+    private static final class Debit implements Command {
+        final int fromId;
+        final int toId;          // -1 for a plain withdraw
+        final long amount;
+        final CompletableFuture<Boolean> result;
+
+        Debit(int fromId, int toId, long amount, CompletableFuture<Boolean> result) {
+            this.fromId = fromId;
+            this.toId = toId;
+            this.amount = amount;
+            this.result = result;
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            result.completeExceptionally(cause);
+        }
+    }
+
+    private static final class Credit implements Command {
+        final int toId;
+        final long amount;
+        final CompletableFuture<Boolean> result;
+
+        Credit(int toId, long amount, CompletableFuture<Boolean> result) {
+            this.toId = toId;
+            this.amount = amount;
+            this.result = result;
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            result.completeExceptionally(cause);
+        }
+    }
+
+    private static final class Query implements Command {
+        final int accountId;
+        final CompletableFuture<Long> result;
+
+        Query(int accountId, CompletableFuture<Long> result) {
+            this.accountId = accountId;
+            this.result = result;
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            result.completeExceptionally(cause);
+        }
+    }
+
+    private static final class SumAll implements Command {
+        final CompletableFuture<Long> result;
+
+        SumAll(CompletableFuture<Long> result) {
+            this.result = result;
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            result.completeExceptionally(cause);
+        }
+    }
+
+    private enum Shutdown implements Command {
+        DRAIN, STOP;
+
+        @Override
+        public void fail(Throwable cause) {
+        }
+    }
+
+    // ---------- Shard ----------
+
+    private final class Shard extends Thread {
+        // Unbounded on purpose: with bounded queues, shard A blocking on a full
+        // queue of shard B while B blocks on A's queue would deadlock.
+        // Backpressure belongs at the edge (the clients), not between shards.
+        private final BlockingQueue<Command> inbox = new LinkedBlockingQueue<>();
+        private final long[] balances;  // Only ever touched by this thread!
+        private final List<Command> batch = new ArrayList<>();
+        private boolean draining;        // Past DRAIN: only CREDITs are still applied
+        private volatile boolean stopped;  // Past STOP: nothing will read the inbox again
+
+        Shard(int index, int ownedAccounts, long initialBalance) {
+            super("Shard-" + index);
+            this.balances = new long[ownedAccounts];
+            java.util.Arrays.fill(balances, initialBalance);
+        }
+
+        /**
+         * A sender that raced STOP fails its own command: either the shard's
+         * final sweep sees it, or the sender sees stopped after adding it.
+         */
+        void send(Command command) {
+            inbox.add(command);
+            if (stopped) {
+                failQueued();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    batch.add(inbox.take());
+                    inbox.drainTo(batch, 255);  // Amortize queue overhead
+                    for (int i = 0; i < batch.size(); i++) {
+                        Command command = batch.get(i);
+                        if (command == Shutdown.STOP) {
+                            stopped = true;
+                            for (Command rest : batch.subList(i + 1, batch.size())) {
+                                rest.fail(new IllegalStateException("Ledger is shut down"));
+                            }
+                            failQueued();
+                            return;
+                        }
+                        dispatch(command);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** One bad command fails its own future - never the shard thread. */
+        private void dispatch(Command command) {
+            if (command == Shutdown.DRAIN) {
+                draining = true;
+                drained.countDown();
+            } else if (draining && !(command instanceof Credit)) {
+                command.fail(new IllegalStateException("Ledger is shut down"));
+            } else {
+                try {
+                    handle(command);
+                } catch (RuntimeException e) {
+                    command.fail(e);
+                }
+            }
+        }
+
+        private void failQueued() {
+            Command command;
+            while ((command = inbox.poll()) != null) {
+                command.fail(new IllegalStateException("Ledger is shut down"));
+            }
+        }
+
+        private void handle(Command command) {
+            if (command instanceof Debit) {
+                Debit debit = (Debit) command;
+                int from = localIndex(debit.fromId);
+                if (balances[from] < debit.amount) {
+                    debit.result.complete(false);  // Insufficient funds
+                    return;
+                }
+                balances[from] -= debit.amount;    // Phase 1: debit
+                if (debit.toId < 0) {
+                    debit.result.complete(true);
+                } else if (shardOf(debit.toId) == this) {
+                    balances[localIndex(debit.toId)] += debit.amount;
+                    debit.result.complete(true);
+                } else {
+                    // Phase 2: hand the money to the target shard
+                    shardOf(debit.toId).send(new Credit(debit.toId, debit.amount, debit.result));
+                }
+            } else if (command instanceof Credit) {
+                Credit credit = (Credit) command;
+                balances[localIndex(credit.toId)] += credit.amount;
+                credit.result.complete(true);
+            } else if (command instanceof Query) {
+                Query query = (Query) command;
+                query.result.complete(balances[localIndex(query.accountId)]);
+            } else if (command instanceof SumAll) {
+                long sum = 0;
+                for (long balance : balances) sum += balance;
+                ((SumAll) command).result.complete(sum);
+            }
+        }
+
+        private int localIndex(int accountId) {
+            return accountId / shards.length;
+        }
+    }
+}
+
+/**
+ * Samples account ids 0..n-1 with a Zipf distribution: id k is chosen with
+ * probability proportional to 1 / (k + 1)^skew. skew = 0 is uniform; skew
+ * around 1 means a few accounts receive most of the traffic.
+ */
+class ZipfGenerator {
+    private final double[] cdf;
+
+    public ZipfGenerator(int n, double skew) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, skew);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cdf[k] /= sum;
+        }
+    }
+
+    public int next(Random rand) {
+        int index = java.util.Arrays.binarySearch(cdf, rand.nextDouble());
+        return index >= 0 ? index : Math.min(-index - 1, cdf.length - 1);
+    }
+}
+
+/**
+ * The lock-per-account baseline (same idea as BankAccount in Module 2),
+ * using long balances so totals can be compared exactly.
+ */
+class LockedAccount {
+    private final int id;
+    private long balance;
+
+    LockedAccount(int id, long initialBalance) {
+        this.id = id;
+        this.balance = initialBalance;
+    }
+
+    boolean transfer(long amount, LockedAccount to) {
+        LockedAccount first = id < to.id ? this : to;
+        LockedAccount second = id < to.id ? to : this;
+        synchronized (first) {
+            synchronized (second) {
+                if (balance < amount) {
+                    return false;
+                }
+                balance -= amount;
+                to.balance += amount;
+                return true;
+            }
+        }
+    }
+
+    synchronized long getBalance() {
+        return balance;
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine):
+ *
+ * === Sharded Single-Writer Ledger ===
+ *
+ * --- Basic Operations (4 shards) ---
+ * transfer(1 -> 2, 300): true
+ * transfer(1 -> 5, 200): true
+ * transfer(1 -> 2, 9999): false
+ * withdraw(3, 50): true
+ *   Account 1: 500
+ *   Account 2: 1300
+ *   Account 3: 975
+ *   Account 4: 1000
+ *   Account 5: 1200
+ * Total (should be 7975): 7975
+ *
+ * (1-CPU machine: no shard count gets a core of its own)
+ *
+ * --- Zipf skew 0.0 (4 clients, 400000 transfers) ---
+ *   lock-per-account          1,742,270 transfers/sec   total=10000000
+ *   ledger, 1 shard(s)          659,970 transfers/sec   total=10000000
+ *   ledger, 2 shard(s)          728,999 transfers/sec   total=10000000
+ *
+ * --- Zipf skew 1.2 (4 clients, 400000 transfers) ---
+ *   lock-per-account          2,331,528 transfers/sec   total=10000000
+ *   ledger, 1 shard(s)        1,153,066 transfers/sec   total=10000000
+ *   ledger, 2 shard(s)        1,136,751 transfers/sec   total=10000000
+ *
+ *
+ * HOW IT WORKS:
+ *
+ *   Clients                 Shard 0 (owns 0, 2, 4...)   Shard 1 (owns 1, 3, 5...)
+ *   transfer(2 -> 3) ──▶   [DEBIT 2]
+ *                           balance[2] -= 10
+ *                           send CREDIT ─────────────▶  [CREDIT 3]
+ *                                                       balance[3] += 10
+ *                                                       future.complete(true)
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. SINGLE WRITER:
+ *    Each balance has exactly one thread that reads and writes it, so no
+ *    synchronization is needed on the data itself. The queue hand-off
+ *    provides the happens-before edge.
+ *
+ * 2. HOT ACCOUNTS:
+ *    With locks, a hot account makes every thread contend on one monitor.
+ *    With shards, a hot account just means a busier shard - commands are
+ *    applied sequentially without any lock hand-off or context switch.
+ *
+ * 3. TWO-PHASE TRANSFER:
+ *    The debit is checked and applied where the source balance lives.
+ *    The credit cannot fail, so no abort/rollback phase is needed. Money is
+ *    briefly "in flight" between the phases, so a global total is only exact
+ *    once all transfers have completed.
+ *
+ * 4. MESSAGES ARE NOT FREE:
+ *    Every ledger operation is a queue hand-off, a future to complete and
+ *    often a thread wake-up - work an uncontended synchronized block never
+ *    does. Above, on one CPU, lock-per-account is 2-2.5x faster at both
+ *    skews. Shards can only pay for that with parallelism: each one needs
+ *    a core of its own, and the lock version has to be losing time to
+ *    contention (many cores on a few hot accounts) before the ledger can
+ *    come out ahead. Measure on your hardware before switching. And one
+ *    extremely hot account still runs at the speed of its one shard.
+ *
+ * 5. BATCHING:
+ *    drainTo() lets a shard process many commands per wake-up. On a busy
+ *    system that spreads the cost of a wake-up over a whole batch - the
+ *    main lever on the message-passing overhead in insight 4.
+ *
+ * 6. SHUTDOWN IS A PROTOCOL TOO:
+ *    A shard can't just stop - a CREDIT for money another shard already
+ *    debited may still be on its way. Stop the debits everywhere first,
+ *    then stop the shards, and the in-flight money always lands.
+ */
@@ -0,0 +1,475 @@
+/**
+ * Example 04: Software Transactional Memory (TL2-style)
+ *
+ * BankAccount.transfer() locks exactly two accounts in id order. A batch
+ * settlement that touches 5, 50 or 500 accounts would have to sort and lock
+ * all of them - and one mistake in the ordering means deadlock.
+ *
+ * STM takes the database approach instead:
+ * - Shared state lives in transactional references (TVar)
+ * - Code runs inside atomic(() -> ...) blocks WITHOUT taking locks
+ * - Reads are optimistic; conflicts are detected at commit time
+ * - A conflicting transaction is simply thrown away and retried
+ *
+ * The algorithm is a small version of TL2 (Transactional Locking II):
+ * 1. Start: remember the global clock value (readVersion)
+ * 2. Read:  a TVar is valid if it is unlocked and not newer than readVersion
+ * 3. Write: buffer new values privately (the write set)
+ * 4. Commit: lock the write set, bump the clock, re-validate the read set,
+ *            publish the values stamped with the new version, unlock
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+public class Example04_SoftwareTransactionalMemory {
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== Software Transactional Memory ===\n");
+
+        basicDemo();
+        batchSettlementDemo();
+        benchmark();
+    }
+
+    private static void basicDemo() {
+        System.out.println("--- Basic atomic() Block ---");
+        TVar<Long> alice = new TVar<>(100L);
+        TVar<Long> bob = new TVar<>(50L);
+
+        STM.atomic(() -> {
+            alice.set(alice.get() - 30);
+            bob.set(bob.get() + 30);
+        });
+
+        long total = STM.atomic(() -> alice.get() + bob.get());
+        System.out.println("Alice: " + alice.get() + ", Bob: " + bob.get() + ", Total: " + total);
+        System.out.println();
+    }
+
+    private static void batchSettlementDemo() throws InterruptedException {
+        System.out.println("--- Concurrent Batch Settlements ---");
+        int numAccounts = 20;
+        List<TVar<Long>> accounts = new ArrayList<>();
+        for (int i = 0; i < numAccounts; i++) {
+            accounts.add(new TVar<>(1_000L));
+        }
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                Random rand = new Random(seed);
+                for (int i = 0; i < 10_000; i++) {
+                    // Every batch touches 6 accounts - a lock-based version
+                    // would need to sort and lock all of them
+                    int[] ids = pickDistinct(rand, numAccounts, 6);
+                    STM.atomic(() -> settle(accounts, ids, 5));
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        long total = STM.atomic(() -> {
+            long sum = 0;
+            for (TVar<Long> account : accounts) sum += account.get();
+            return sum;
+        });
+        System.out.println("Total (should be " + (numAccounts * 1_000) + "): " + total);
+        System.out.println("Commits: " + STM.commits() + ", retries: " + STM.retries());
+        System.out.println();
+    }
+
+    /**
+     * Move amount from every payer (ids[1..]) to the payee (ids[0]).
+     * All legs commit together, or the batch is rejected as a whole.
+     */
+    private static boolean settle(List<TVar<Long>> accounts, int[] ids, long amount) {
+        for (int i = 1; i < ids.length; i++) {
+            if (accounts.get(ids[i]).get() < amount) {
+                return false;
+            }
+        }
+        for (int i = 1; i < ids.length; i++) {
+            TVar<Long> payer = accounts.get(ids[i]);
+            payer.set(payer.get() - amount);
+        }
+        TVar<Long> payee = accounts.get(ids[0]);
+        payee.set(payee.get() + amount * (ids.length - 1));
+        return true;
+    }
+
+    private static void benchmark() throws InterruptedException {
+        System.out.println("--- STM vs Lock-Ordered Settlements (4 threads, 6 legs) ---");
+        // Many accounts = low conflict rate, few accounts = high conflict rate
+        for (int numAccounts : new int[]{10_000, 16}) {
+            String label = numAccounts > 100 ? "low conflict " : "high conflict";
+
+            List<TVar<Long>> tvars = new ArrayList<>();
+            OrderedLockAccount[] locked = new OrderedLockAccount[numAccounts];
+            for (int i = 0; i < numAccounts; i++) {
+                tvars.add(new TVar<>(1_000_000L));
+                locked[i] = new OrderedLockAccount(1_000_000L);
+            }
+
+            long stmRetriesBefore = STM.retries();
+            long stmNanos = runThreads(4, 50_000, (rand) -> {
+                int[] ids = pickDistinct(rand, numAccounts, 6);
+                STM.atomic(() -> settle(tvars, ids, 1));
+            });
+            long lockNanos = runThreads(4, 50_000, (rand) -> {
+                int[] ids = pickDistinct(rand, numAccounts, 6);
+                OrderedLockAccount.settle(locked, ids, 1);
+            });
+
+            System.out.printf("  %s  STM: %,9d ops/sec (%,d retries)   locks: %,9d ops/sec%n",
+                label, 200_000L * 1_000_000_000L / stmNanos, STM.retries() - stmRetriesBefore,
+                200_000L * 1_000_000_000L / lockNanos);
+        }
+    }
+
+    private interface Op {
+        void run(Random rand);
+    }
+
+    private static long runThreads(int numThreads, int opsPerThread, Op op)
+            throws InterruptedException {
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                Random rand = new Random(seed);
+                for (int i = 0; i < opsPerThread; i++) {
+                    op.run(rand);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        return System.nanoTime() - start;
+    }
+
+    private static int[] pickDistinct(Random rand, int bound, int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            int candidate;
+            boolean duplicate;
+            do {
+                candidate = rand.nextInt(bound);
+                duplicate = false;
+                for (int j = 0; j < i; j++) {
+                    duplicate |= ids[j] == candidate;
+                }
+            } while (duplicate);
+            ids[i] = candidate;
+        }
+        return ids;
+    }
+}
+
+/**
+ * A transactional reference.
+ *
+ * versionLock packs the commit version and a lock bit:
+ *   (version << 1) | locked
+ * so a single volatile read tells a reader both "is someone committing?"
+ * and "was this written after my transaction started?".
+ */
+class TVar<T> {
+    private volatile T value;
+    final AtomicLong versionLock = new AtomicLong(0);
+
+    public TVar(T initialValue) {
+        this.value = initialValue;
+    }
+
+    /** Read inside a transaction (or as a one-off transaction outside). */
+    public T get() {
+        Transaction tx = STM.current();
+        if (tx == null) {
+            return STM.atomic(this::get);
+        }
+        return tx.read(this);
+    }
+
+    /** Write inside a transaction (or as a one-off transaction outside). */
+    public void set(T newValue) {
+        Transaction tx = STM.current();
+        if (tx == null) {
+            STM.atomic(() -> set(newValue));
+            return;
+        }
+        tx.write(this, newValue);
+    }
+
+    T rawValue() {
+        return value;
+    }
+
+    void publish(T newValue) {
+        this.value = newValue;
+    }
+
+    static boolean isLocked(long versionLock) {
+        return (versionLock & 1) != 0;
+    }
+
+    static long versionOf(long versionLock) {
+        return versionLock >>> 1;
+    }
+}
+
+/**
+ * Entry point for atomic blocks. Keeps the global version clock and the
+ * transaction of the current thread.
+ */
+final class STM {
+    static final AtomicLong globalClock = new AtomicLong(0);
+    private static final ThreadLocal<Transaction> CURRENT = new ThreadLocal<>();
+    private static final AtomicLong commits = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+
+    private STM() {}
+
+    public static void atomic(Runnable block) {
+        atomic(() -> {
+            block.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run block as a transaction, retrying until it commits.
+     *
+     * The block may run more than once, so it must not have side effects
+     * other than TVar reads and writes (no I/O, no println).
+     */
+    public static <T> T atomic(Supplier<T> block) {
+        if (CURRENT.get() != null) {
+            return block.get();  // Nested block: join the outer transaction
+        }
+        int attempt = 0;
+        while (true) {
+            Transaction tx = new Transaction(globalClock.get());
+            CURRENT.set(tx);
+            try {
+                T result = block.get();
+                if (tx.commit()) {
+                    commits.incrementAndGet();
+                    return result;
+                }
+            } catch (RetryException conflict) {
+                // Inconsistent read detected - fall through and retry
+            } finally {
+                CURRENT.remove();
+            }
+            retries.incrementAndGet();
+            backoff(++attempt);
+        }
+    }
+
+    static Transaction current() {
+        return CURRENT.get();
+    }
+
+    static long commits() {
+        return commits.get();
+    }
+
+    static long retries() {
+        return retries.get();
+    }
+
+    private static void backoff(int attempt) {
+        if (attempt < 4) {
+            Thread.onSpinWait();
+        } else if (attempt < 16) {
+            Thread.yield();
+        } else {
+            // Randomized sleep breaks up repeating conflict patterns (livelock)
+            java.util.concurrent.locks.LockSupport.parkNanos(
+                java.util.concurrent.ThreadLocalRandom.current().nextLong(1_000, 50_000));
+        }
+    }
+}
+
+/** Thrown (without a stack trace) to abort the current attempt. */
+final class RetryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    static final RetryException INSTANCE = new RetryException();
+
+    private RetryException() {
+        super(null, null, false, false);
+    }
+}
+
+final class Transaction {
+    private final long readVersion;
+    private final Set<TVar<?>> readSet = new HashSet<>();
+    private final Map<TVar<?>, Object> writeSet = new LinkedHashMap<>();
+
+    Transaction(long readVersion) {
+        this.readVersion = readVersion;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T read(TVar<T> tvar) {
+        if (writeSet.containsKey(tvar)) {
+            return (T) writeSet.get(tvar);  // Read your own writes
+        }
+        // Sample lock word, value, lock word: if both samples agree, are
+        // unlocked and not newer than our snapshot, the value is consistent
+        long before = tvar.versionLock.get();
+        T value = tvar.rawValue();
+        long after = tvar.versionLock.get();
+        if (before != after || TVar.isLocked(before) || TVar.versionOf(before) > readVersion) {
+            throw RetryException.INSTANCE;
+        }
+        readSet.add(tvar);
+        return value;
+    }
+
+    <T> void write(TVar<T> tvar, T value) {
+        writeSet.put(tvar, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    boolean commit() {
+        if (writeSet.isEmpty()) {
+            return true;  // Read-only: every read was already validated
+        }
+
+        // 1. Lock the write set. tryLock only - on failure we abort instead
+        //    of waiting, so there is no lock ordering and no deadlock.
+        List<TVar<?>> locked = new ArrayList<>(writeSet.size());
+        for (TVar<?> tvar : writeSet.keySet()) {
+            long current = tvar.versionLock.get();
+            if (TVar.isLocked(current) || !tvar.versionLock.compareAndSet(current, current | 1)) {
+                unlock(locked);
+                return false;
+            }
+            locked.add(tvar);
+        }
+
+        // 2. Get our commit version
+        long writeVersion = STM.globalClock.incrementAndGet();
+
+        // 3. Validate reads, unless nobody committed since we started
+        if (writeVersion != readVersion + 1) {
+            for (TVar<?> tvar : readSet) {
+                long current = tvar.versionLock.get();
+                boolean lockedByOther = TVar.isLocked(current) && !writeSet.containsKey(tvar);
+                if (lockedByOther || TVar.versionOf(current) > readVersion) {
+                    unlock(locked);
+                    return false;
+                }
+            }
+        }
+
+        // 4. Publish values, then release locks stamped with the new version
+        for (Map.Entry<TVar<?>, Object> entry : writeSet.entrySet()) {
+            ((TVar<Object>) entry.getKey()).publish(entry.getValue());
+        }
+        for (TVar<?> tvar : locked) {
+            tvar.versionLock.set(writeVersion << 1);
+        }
+        return true;
+    }
+
+    private static void unlock(List<TVar<?>> locked) {
+        for (TVar<?> tvar : locked) {
+            tvar.versionLock.set(tvar.versionLock.get() & ~1L);
+        }
+    }
+}
+
+/**
+ * Lock-ordered baseline: lock every account in ascending id order.
+ */
+class OrderedLockAccount {
+    private final ReentrantLock lock = new ReentrantLock();
+    private long balance;
+
+    OrderedLockAccount(long balance) {
+        this.balance = balance;
+    }
+
+    static boolean settle(OrderedLockAccount[] accounts, int[] ids, long amount) {
+        int[] order = ids.clone();
+        Arrays.sort(order);  // Global order prevents deadlock
+        for (int id : order) {
+            accounts[id].lock.lock();
+        }
+        try {
+            for (int i = 1; i < ids.length; i++) {
+                if (accounts[ids[i]].balance < amount) {
+                    return false;
+                }
+            }
+            for (int i = 1; i < ids.length; i++) {
+                accounts[ids[i]].balance -= amount;
+            }
+            accounts[ids[0]].balance += amount * (ids.length - 1);
+            return true;
+        } finally {
+            for (int i = order.length - 1; i >= 0; i--) {
+                accounts[order[i]].lock.unlock();
+            }
+        }
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers vary by machine):
+ *
+ * === Software Transactional Memory ===
+ *
+ * --- Basic atomic() Block ---
+ * Alice: 70, Bob: 80, Total: 150
+ *
+ * --- Concurrent Batch Settlements ---
+ * Total (should be 20000): 20000
+ * Commits: 40005, retries: 270
+ *
+ * --- STM vs Lock-Ordered Settlements (4 threads, 6 legs) ---
+ *   low conflict   STM:   120,481 ops/sec (358 retries)   locks:   306,591 ops/sec
+ *   high conflict  STM:   287,441 ops/sec (422 retries)   locks: 1,209,041 ops/sec
+ *   (1-CPU machine: threads rarely interleave mid-transaction, so even
+ *   "high conflict" retries little; the few-account run is faster for
+ *   both because its accounts stay in cache)
+ *
+ *
+ * HOW A COMMIT WORKS:
+ *
+ *   T1: rv=10  read A(v7) read B(v9)  write A, B   lock A,B  wv=11  validate  publish
+ *   T2: rv=10  read B(v9) read C(v3)  write B, C   lock B -> FAILS -> abort, retry
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. NO DEADLOCK BY CONSTRUCTION:
+ *    Commit only ever uses compareAndSet to lock. A transaction that cannot
+ *    get a lock aborts and releases everything, so there is no wait-for cycle.
+ *
+ * 2. OPTIMISTIC READS:
+ *    Readers never write shared memory. Read-only transactions commit
+ *    without taking any lock at all.
+ *
+ * 3. CONSISTENT SNAPSHOTS:
+ *    The version check on every read means a transaction never sees a mix
+ *    of old and new values (no "zombie" transactions acting on garbage).
+ *
+ * 4. THE PRICE:
+ *    Every read and write goes through the transaction's logs, and every
+ *    commit locks, validates and publishes - overhead the lock version
+ *    never pays. Above, lock ordering is 2.5-4x faster even at low
+ *    conflict, and high conflict adds thrown-away work on top. What STM
+ *    buys is not speed but composition: atomic() blocks nest and can't
+ *    deadlock, while lock ordering needs every account known up front.
+ *
+ * 5. NO SIDE EFFECTS IN atomic():
+ *    A block may run several times. Never do I/O inside it.
+ */
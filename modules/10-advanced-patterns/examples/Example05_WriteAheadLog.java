@@ -0,0 +1,651 @@
+/**
+ * Example 05: Write-Ahead Log with Group Commit
+ *
+ * Nothing in BankAccount or BankAccountWithLock survives a restart. The
+ * standard fix is a write-ahead log (WAL): before a mutation is acknowledged,
+ * a record describing it must be on disk (write + fsync).
+ *
+ * The catch: an fsync takes anywhere from ~50us (NVMe) to ~10ms (spinning
+ * disk). One fsync per mutation caps you at the disk's IOPS no matter how
+ * many threads you add.
+ *
+ * GROUP COMMIT fixes that:
+ * - Committing threads only ENQUEUE their record and wait
+ * - A single writer thread drains everything queued so far, writes it with
+ *   ONE FileChannel.write() and ONE force(), then wakes all those waiters
+ * - The more threads are waiting, the bigger the batch - fsync cost is
+ *   shared by the whole group
+ *
+ * This example also takes periodic balance snapshots and replays
+ * snapshot + log on startup.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+public class Example05_WriteAheadLog {
+
+    private static final int NUM_ACCOUNTS = 100;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("=== Write-Ahead Log with Group Commit ===\n");
+
+        Path dir = Files.createTempDirectory("wal-demo");
+        try {
+            recoveryDemo(dir.resolve("recovery"));
+            benchmark(dir);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void recoveryDemo(Path dir) throws Exception {
+        System.out.println("--- Crash Recovery ---");
+        DurableBank bank = DurableBank.open(dir, NUM_ACCOUNTS, 1_000, 64);
+        bank.deposit(1, 500);
+        bank.withdraw(2, 300);
+        bank.transfer(3, 4, 250);
+        bank.snapshot();                 // Balances so far go into the snapshot
+        bank.deposit(5, 42);             // ...and these only live in the log
+        bank.transfer(1, 2, 100);
+        System.out.println("Before restart: " + bank.describe(1, 5));
+        bank.close();                    // Simulates the process going away
+
+        DurableBank recovered = DurableBank.open(dir, NUM_ACCOUNTS, 1_000, 64);
+        System.out.println("After restart:  " + recovered.describe(1, 5));
+        System.out.println("Replayed " + recovered.replayedRecords() + " log record(s) on top of the snapshot");
+        recovered.close();
+        System.out.println();
+    }
+
+    private static void benchmark(Path dir) throws Exception {
+        System.out.println("--- Commits/sec: per-record fsync vs group commit ---");
+        for (int threads : new int[]{1, 8, 32}) {
+            // maxBatch = 1 means every record gets its own write + force
+            runBenchmark(dir.resolve("single-" + threads), threads, 1, "per-record fsync");
+            runBenchmark(dir.resolve("group-" + threads), threads, 1_024, "group commit    ");
+        }
+    }
+
+    private static void runBenchmark(Path dir, int numThreads, int maxBatch, String label)
+            throws Exception {
+        DurableBank bank = DurableBank.open(dir, NUM_ACCOUNTS, 1_000_000, maxBatch);
+        // Snapshots run alongside the traffic; they never stop committers
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        bank.scheduleSnapshots(scheduler, 250, TimeUnit.MILLISECONDS);
+        long durationNanos = TimeUnit.MILLISECONDS.toNanos(1_000);
+        AtomicLong commits = new AtomicLong();
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                long deadline = System.nanoTime() + durationNanos;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        int from = rand.nextInt(NUM_ACCOUNTS);
+                        int to = (from + 1 + seed) % NUM_ACCOUNTS;
+                        bank.transfer(from, to, 1);
+                        commits.incrementAndGet();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        long elapsed = System.nanoTime() - start;
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+
+        System.out.printf("  %2d threads, %s: %,8d commits/sec  (avg %.1f records per fsync)%n",
+            numThreads, label, commits.get() * 1_000_000_000L / elapsed, bank.averageBatchSize());
+        bank.close();
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (java.util.stream.Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(java.util.Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
+
+/**
+ * Account balances made durable by a write-ahead log.
+ *
+ * Every mutation is validated and applied in memory under a lock, appended
+ * to the log in the same critical section (so log order == apply order),
+ * and acknowledged only after the log record is fsynced. If the log write
+ * fails, the mutation is undone again, so memory never keeps a change
+ * that recovery would not replay.
+ */
+class DurableBank {
+    private static final String LOG_FILE = "wal.log";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    private final Path dir;
+    private final long[] balances;
+    private final Object lock = new Object();
+    private final Object snapshotLock = new Object();  // One snapshot at a time
+    private final GroupCommitLog log;
+    private long lastLsn;         // Log sequence number of the last applied record
+    private long replayed;
+
+    private DurableBank(Path dir, long[] balances, GroupCommitLog log, long lastLsn, long replayed) {
+        this.dir = dir;
+        this.balances = balances;
+        this.log = log;
+        this.lastLsn = lastLsn;
+        this.replayed = replayed;
+    }
+
+    /**
+     * Open (or create) a bank in dir: load the snapshot, then replay every
+     * log record newer than it.
+     */
+    public static DurableBank open(Path dir, int numAccounts, long initialBalance, int maxBatch)
+            throws IOException {
+        Files.createDirectories(dir);
+        long[] balances = new long[numAccounts];
+        java.util.Arrays.fill(balances, initialBalance);
+        long snapshotLsn = readSnapshot(dir.resolve(SNAPSHOT_FILE), balances);
+
+        Path logPath = dir.resolve(LOG_FILE);
+        long[] lastLsn = {snapshotLsn};
+        long[] replayed = {0};
+        long validLength = LogRecord.replay(logPath, record -> {
+            if (record.lsn > snapshotLsn) {
+                record.applyTo(balances);
+                lastLsn[0] = record.lsn;
+                replayed[0]++;
+            }
+        });
+
+        GroupCommitLog log = new GroupCommitLog(logPath, validLength, maxBatch);
+        return new DurableBank(dir, balances, log, lastLsn[0], replayed[0]);
+    }
+
+    public void deposit(int accountId, long amount) throws IOException, InterruptedException {
+        requirePositive(amount);
+        LogRecord record;
+        Future<Void> durable;
+        synchronized (lock) {
+            record = new LogRecord(++lastLsn, LogRecord.DEPOSIT, accountId, -1, amount);
+            record.applyTo(balances);
+            durable = log.append(record);
+        }
+        awaitDurable(record, durable);  // Wait OUTSIDE the lock so others can join the group
+    }
+
+    public boolean withdraw(int accountId, long amount) throws IOException, InterruptedException {
+        requirePositive(amount);
+        LogRecord record;
+        Future<Void> durable;
+        synchronized (lock) {
+            if (balances[accountId] < amount) {
+                return false;  // Nothing changed, nothing to log
+            }
+            record = new LogRecord(++lastLsn, LogRecord.WITHDRAW, accountId, -1, amount);
+            record.applyTo(balances);
+            durable = log.append(record);
+        }
+        awaitDurable(record, durable);
+        return true;
+    }
+
+    /** Both legs are one log record, so a crash can never persist half a transfer. */
+    public boolean transfer(int fromId, int toId, long amount) throws IOException, InterruptedException {
+        requirePositive(amount);
+        LogRecord record;
+        Future<Void> durable;
+        synchronized (lock) {
+            if (balances[fromId] < amount) {
+                return false;
+            }
+            record = new LogRecord(++lastLsn, LogRecord.TRANSFER, fromId, toId, amount);
+            record.applyTo(balances);
+            durable = log.append(record);
+        }
+        awaitDurable(record, durable);
+        return true;
+    }
+
+    public long getBalance(int accountId) {
+        synchronized (lock) {
+            return balances[accountId];
+        }
+    }
+
+    /**
+     * Write a point-in-time copy of all balances.
+     *
+     * Only the array copy happens under the lock; the file is written to a
+     * temp file and atomically renamed, so a crash mid-snapshot leaves the
+     * previous snapshot intact. The snapshot must not be newer than the
+     * durable log, so we wait for the log to catch up before writing it.
+     *
+     * Snapshots are serialized: two overlapping calls would share the temp
+     * file, and the renamed result could pair one call's LSN with the
+     * other's balances - replay would then skip acknowledged records.
+     * Serializing also means a later snapshot is never replaced by an
+     * earlier one.
+     */
+    public void snapshot() throws IOException, InterruptedException {
+        synchronized (snapshotLock) {
+            writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() throws IOException, InterruptedException {
+        long[] copy;
+        long lsn;
+        Future<Void> logCaughtUp;
+        synchronized (lock) {
+            copy = balances.clone();
+            lsn = lastLsn;
+            logCaughtUp = log.barrier();
+        }
+        awaitDurable(logCaughtUp);
+
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES * (copy.length + 1));
+        buf.putLong(lsn);
+        for (long balance : copy) buf.putLong(balance);
+        buf.flip();
+
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Take a snapshot every period in the background. A real system would
+     * also roll the log here and delete segments the snapshot covers.
+     */
+    public ScheduledFuture<?> scheduleSnapshots(ScheduledExecutorService scheduler,
+                                                long period, TimeUnit unit) {
+        return scheduler.scheduleAtFixedRate(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, period, period, unit);
+    }
+
+    public long replayedRecords() {
+        return replayed;
+    }
+
+    public double averageBatchSize() {
+        return log.averageBatchSize();
+    }
+
+    String describe(int fromId, int toId) {
+        StringBuilder sb = new StringBuilder();
+        for (int id = fromId; id <= toId; id++) {
+            sb.append('#').append(id).append('=').append(getBalance(id)).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    public void close() throws IOException, InterruptedException {
+        log.close();
+    }
+
+    private static long readSnapshot(Path path, long[] balances) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+        long lsn = buf.getLong();
+        for (int i = 0; i < balances.length && buf.hasRemaining(); i++) {
+            balances[i] = buf.getLong();
+        }
+        return lsn;
+    }
+
+    /**
+     * A failed write means the record will not be replayed, so take its
+     * change back out of memory. Reverting is just the opposite additions,
+     * so it is correct even if later mutations were applied on top - those
+     * fail too, since a failed log rejects everything after it. (On
+     * InterruptedException the record may still become durable, so it
+     * stays applied.)
+     */
+    private void awaitDurable(LogRecord record, Future<Void> durable) throws IOException, InterruptedException {
+        try {
+            awaitDurable(durable);
+        } catch (IOException e) {
+            synchronized (lock) {
+                record.revertFrom(balances);
+            }
+            throw e;
+        }
+    }
+
+    private static void awaitDurable(Future<Void> durable) throws IOException, InterruptedException {
+        try {
+            durable.get();
+        } catch (ExecutionException e) {
+            throw new IOException("WAL write failed", e.getCause());
+        }
+    }
+
+    private static void requirePositive(long amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+    }
+}
+
+/**
+ * The append-only log file plus the single writer thread that batches
+ * concurrent appends into one write() + force().
+ *
+ * A failed write or force() fails the log for good. After a failed fsync
+ * the kernel may have dropped the dirty pages, so what is on disk is
+ * unknown - retrying could acknowledge records that sit behind a hole.
+ * The writer cuts the file back to the last fsynced length (best effort;
+ * replay's CRC check catches anything it can't) and fails every later
+ * append.
+ */
+class GroupCommitLog {
+    private static final class Pending {
+        final LogRecord record;      // null for a barrier
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(LogRecord record) {
+            this.record = record;
+        }
+    }
+
+    private static final Pending CLOSE = new Pending(null);
+
+    private final FileChannel channel;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final int maxBatch;
+    private final Thread writer;
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private long durableLength;  // Writer thread only: end of the last fsynced group
+
+    // Guarded by "this", so nothing can be queued behind CLOSE
+    private boolean closed;
+    private IOException failure;
+
+    GroupCommitLog(Path path, long validLength, int maxBatch) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Cut off a torn record left by a crash in the middle of a write
+        channel.truncate(validLength);
+        channel.position(validLength);
+        this.durableLength = validLength;
+        this.maxBatch = maxBatch;
+        this.writer = new Thread(this::writeLoop, "WAL-Writer");
+        writer.start();
+    }
+
+    /** Enqueue a record; the future completes once it is on disk. */
+    Future<Void> append(LogRecord record) {
+        return enqueue(new Pending(record));
+    }
+
+    /** Completes once every record appended before it is on disk. */
+    Future<Void> barrier() {
+        return enqueue(new Pending(null));
+    }
+
+    private synchronized Future<Void> enqueue(Pending pending) {
+        if (failure != null) {
+            pending.done.completeExceptionally(failure);
+        } else if (closed) {
+            pending.done.completeExceptionally(new IOException("WAL is closed"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.done;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocateDirect(LogRecord.SIZE * Math.max(1, maxBatch));
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(queue.take());  // Sleep until there is work
+            } catch (InterruptedException e) {
+                break;
+            }
+            // Everyone who arrived while we were busy joins this group
+            queue.drainTo(batch, maxBatch - 1);
+
+            buf.clear();
+            for (Pending pending : batch) {
+                if (pending == CLOSE) {
+                    closing = true;
+                } else if (pending.record != null) {
+                    pending.record.writeTo(buf);
+                }
+            }
+            buf.flip();
+
+            try {
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(false);  // ONE fsync for the whole group
+                durableLength = channel.position();
+                fsyncs.incrementAndGet();
+                for (Pending pending : batch) {
+                    if (pending.record != null) records.incrementAndGet();
+                    pending.done.complete(null);
+                }
+            } catch (IOException e) {
+                fail(e, batch);
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /** Stop accepting appends, drop the torn tail, and fail everything still queued. */
+    private void fail(IOException e, List<Pending> batch) {
+        synchronized (this) {
+            failure = e;
+        }
+        try {
+            channel.truncate(durableLength);
+        } catch (IOException suppressed) {
+            e.addSuppressed(suppressed);
+        }
+        queue.drainTo(batch);
+        for (Pending pending : batch) {
+            pending.done.completeExceptionally(e);
+        }
+    }
+
+    double averageBatchSize() {
+        return fsyncs.get() == 0 ? 0 : (double) records.get() / fsyncs.get();
+    }
+
+    void close() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (!closed && failure == null) {
+                queue.add(CLOSE);
+            }
+            closed = true;
+        }
+        writer.join();
+        channel.close();
+    }
+}
+
+/**
+ * One fixed-size log record:
+ *   [lsn 8][type 1][account 4][toAccount 4][amount 8][crc32 4] = 29 bytes
+ *
+ * The CRC lets recovery tell a complete record from a torn one.
+ */
+class LogRecord {
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAW = 2;
+    static final byte TRANSFER = 3;
+    static final int SIZE = 8 + 1 + 4 + 4 + 8 + 4;
+
+    final long lsn;
+    final byte type;
+    final int accountId;
+    final int toAccountId;
+    final long amount;
+
+    LogRecord(long lsn, byte type, int accountId, int toAccountId, long amount) {
+        this.lsn = lsn;
+        this.type = type;
+        this.accountId = accountId;
+        this.toAccountId = toAccountId;
+        this.amount = amount;
+    }
+
+    void writeTo(ByteBuffer buf) {
+        int start = buf.position();
+        buf.putLong(lsn).put(type).putInt(accountId).putInt(toAccountId).putLong(amount);
+        buf.putInt(crcOf(buf, start));
+    }
+
+    void applyTo(long[] balances) {
+        switch (type) {
+            case DEPOSIT:
+                balances[accountId] += amount;
+                break;
+            case WITHDRAW:
+                balances[accountId] -= amount;
+                break;
+            case TRANSFER:
+                balances[accountId] -= amount;
+                balances[toAccountId] += amount;
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + type);
+        }
+    }
+
+    void revertFrom(long[] balances) {
+        new LogRecord(lsn, type, accountId, toAccountId, -amount).applyTo(balances);
+    }
+
+    interface Visitor {
+        void visit(LogRecord record);
+    }
+
+    /**
+     * Read every valid record in order and return the length of the valid
+     * prefix. Reading stops at the first short or corrupt record.
+     */
+    static long replay(Path path, Visitor visitor) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+        long valid = 0;
+        while (buf.remaining() >= SIZE) {
+            int start = buf.position();
+            long lsn = buf.getLong();
+            byte type = buf.get();
+            int accountId = buf.getInt();
+            int toAccountId = buf.getInt();
+            long amount = buf.getLong();
+            int expectedCrc = crcOf(buf, start);
+            if (buf.getInt() != expectedCrc) {
+                break;  // Torn or corrupt - everything after it is untrusted
+            }
+            visitor.visit(new LogRecord(lsn, type, accountId, toAccountId, amount));
+            valid = buf.position();
+        }
+        return valid;
+    }
+
+    private static int crcOf(ByteBuffer buf, int start) {
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buf.duplicate();
+        body.position(start).limit(start + SIZE - 4);
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
+
+/*
+ * EXPECTED OUTPUT (numbers depend heavily on the disk):
+ *
+ * === Write-Ahead Log with Group Commit ===
+ *
+ * --- Crash Recovery ---
+ * Before restart: #1=1400 #2=800 #3=750 #4=1250 #5=1042
+ * After restart:  #1=1400 #2=800 #3=750 #4=1250 #5=1042
+ * Replayed 2 log record(s) on top of the snapshot
+ *
+ * --- Commits/sec: per-record fsync vs group commit ---
+ *    1 threads, per-record fsync:    ...  (avg 1.0 records per fsync)
+ *    1 threads, group commit    :    ...  (avg 1.0 records per fsync)
+ *    8 threads, per-record fsync:    ...  (avg 1.0 records per fsync)
+ *    8 threads, group commit    :    ...  (avg ~8 records per fsync)
+ *   32 threads, per-record fsync:    ...  (avg 1.0 records per fsync)
+ *   32 threads, group commit    :    ...  (avg ~32 records per fsync)
+ *
+ *
+ * HOW GROUP COMMIT WORKS:
+ *
+ *   T1 ─append─┐
+ *   T2 ─append─┤   queue    ┌──────── WAL-Writer ─────────┐
+ *   T3 ─append─┼──────────▶ │ take + drainTo = [r1 r2 r3] │
+ *              │            │ write([r1 r2 r3])           │
+ *   T1..T3 wait│            │ force()          (one fsync)│
+ *              │            │ complete r1, r2, r3         │
+ *   ◀──────────┘            └─────────────────────────────┘
+ *
+ *
+ * KEY INSIGHTS:
+ *
+ * 1. LOG BEFORE ACK:
+ *    A mutation is only acknowledged after its record is fsynced. On
+ *    restart, snapshot + log replay rebuild exactly the acknowledged state.
+ *
+ * 2. GROUP COMMIT:
+ *    With one thread there is nothing to batch. With many threads the batch
+ *    grows naturally while the previous fsync is in progress - throughput
+ *    scales with concurrency instead of being capped by disk IOPS.
+ *
+ * 3. DON'T WAIT UNDER THE LOCK:
+ *    Threads wait for durability after releasing the bank lock. Waiting
+ *    inside it would serialize everyone and no group could ever form.
+ *
+ * 4. TORN WRITES:
+ *    A crash can leave half a record at the end of the file. The CRC
+ *    detects it and recovery truncates the log to the last good record.
+ *
+ * 5. SNAPSHOTS:
+ *    A snapshot records the LSN it covers, so replay skips older records.
+ *    It is written to a temp file and atomically renamed into place.
+ *
+ * 6. A FAILED FSYNC IS FATAL:
+ *    Retrying after a failed write can leave torn bytes in the middle of
+ *    the log, and replay would stop there - losing records written after
+ *    them that were already acknowledged. Fail the log, undo the change
+ *    in memory, and let recovery start again from the last good record.
+ */